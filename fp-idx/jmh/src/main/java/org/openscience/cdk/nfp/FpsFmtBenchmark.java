@@ -0,0 +1,112 @@
+package org.openscience.cdk.nfp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding the hex fingerprints of an FPS file, from a String (a line that has been read) and
+ * from a ByteBuffer (a mapped file), and encoding them to a byte[] or a StringBuilder. The score
+ * is fingerprints per second.
+ *
+ * @author John May
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FpsFmtBenchmark {
+
+    private static final int N_FPS = 1 << 12;
+
+    @Param({"1024"})
+    public int length;
+
+    private String[]      lines;
+    private ByteBuffer    buffer;
+    private long[]        words;
+    private long[][]      fps;
+    private byte[]        hex;
+    private StringBuilder sb = new StringBuilder();
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(42);
+        lines = new String[N_FPS];
+        fps = new long[N_FPS][];
+        for (int i = 0; i < N_FPS; i++) {
+            fps[i] = Synthetic.fingerprint(rnd, length).words;
+            sb.setLength(0);
+            FpsFmt.writeHex(sb, length, fps[i]);
+            lines[i] = sb.toString();
+        }
+        hex = new byte[length / 4];
+        buffer = ByteBuffer.allocateDirect(N_FPS * length / 4);
+        for (String line : lines)
+            buffer.put(line.getBytes(StandardCharsets.US_ASCII));
+        buffer.flip();
+        words = new long[length / 64];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N_FPS)
+    public long readHexString() {
+        long sum = 0;
+        for (String line : lines) {
+            FpsFmt.readHex(line, length, words);
+            sum += words[0];
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N_FPS)
+    public long readHexBuffer() {
+        ByteBuffer buf = buffer.duplicate();
+        long sum = 0;
+        for (int i = 0; i < N_FPS; i++) {
+            FpsFmt.readHex(buf, length, words);
+            sum += words[0];
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N_FPS)
+    public int writeHexBytes() {
+        int sum = 0;
+        for (long[] fp : fps) {
+            FpsFmt.writeHex(hex, 0, length, fp);
+            sum += hex[0];
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N_FPS)
+    public int writeHexStringBuilder() {
+        int sum = 0;
+        for (long[] fp : fps) {
+            sb.setLength(0);
+            FpsFmt.writeHex(sb, length, fp);
+            sum += sb.charAt(0);
+        }
+        return sum;
+    }
+}
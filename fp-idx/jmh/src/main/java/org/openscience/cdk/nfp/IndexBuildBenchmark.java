@@ -0,0 +1,62 @@
+package org.openscience.cdk.nfp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing an index with {@link FingerprintSort#index(List, int, File)}, the score is the time to
+ * sort and write all the fingerprints (including the summaries) to a temporary file.
+ *
+ * @author John May
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexBuildBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int size;
+
+    @Param({"1024"})
+    public int length;
+
+    private List<BinaryFingerprint> fps;
+    private File                    file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        fps = Synthetic.fingerprints(new Random(42), size, length);
+        file = File.createTempFile("fp-idx-bench", ".idx");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (!file.delete())
+            file.deleteOnExit();
+    }
+
+    @Benchmark
+    public int[] index() throws IOException {
+        return FingerprintSort.index(fps, length, file);
+    }
+}
@@ -0,0 +1,107 @@
+package org.openscience.cdk.nfp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counting the bits in common between a query and a bin of fingerprints, the
+ * score is fingerprints per second.
+ *
+ * @author John May
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PopcountKernelBenchmark {
+
+    private static final int N_FPS      = 1 << 14;
+    private static final int BLOCK_SIZE = 256;
+
+    @Param({"Buffer", "Scalar", "Unrolled"})
+    public String kernel;
+
+    @Param({"1024"})
+    public int length;
+
+    private ByteBuffer     bin;
+    private long[]         query;
+    private long[]         block;
+    private int[]          both;
+    private PopcountKernel impl;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(42);
+        int nWords = length / 64;
+        // a direct buffer as a stand-in for the mapped index
+        bin = ByteBuffer.allocateDirect(8 * nWords * N_FPS);
+        for (int i = 0; i < N_FPS; i++)
+            randomFp(rnd, length).write(bin);
+        bin.flip();
+        query = randomFp(rnd, length).words;
+        block = new long[BLOCK_SIZE * nWords];
+        both = new int[BLOCK_SIZE];
+        if (!"Buffer".equals(kernel))
+            impl = PopcountKernel.valueOf(kernel);
+    }
+
+    // roughly the density of an ECFP4
+    static BinaryFingerprint randomFp(Random rnd, int length) {
+        BinaryFingerprint fp = new BinaryFingerprint(length);
+        int n = 20 + rnd.nextInt(60);
+        for (int i = 0; i < n; i++)
+            fp.add(rnd.nextInt(length));
+        return fp;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N_FPS)
+    public int intersect() {
+        return impl == null ? buffer() : blocks();
+    }
+
+    private int buffer() {
+        ByteBuffer buffer = bin;
+        buffer.position(0);
+        int sum = 0;
+        for (int fpId = 0; fpId < N_FPS; fpId++) {
+            int both = 0;
+            for (long word : query) {
+                both += Long.bitCount(word & buffer.getLong());
+            }
+            sum += both;
+        }
+        return sum;
+    }
+
+    private int blocks() {
+        ByteBuffer buffer = bin.duplicate();
+        LongBuffer words = buffer.asLongBuffer();
+        int sum = 0;
+        for (int start = 0; start < N_FPS; start += BLOCK_SIZE) {
+            words.get(block, 0, BLOCK_SIZE * query.length);
+            impl.intersect(query, block, BLOCK_SIZE, both);
+            for (int i = 0; i < BLOCK_SIZE; i++)
+                sum += both[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,115 @@
+package org.openscience.cdk.nfp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Top-k and threshold searches of a synthetic index (see {@link Synthetic}), the score is the
+ * time per query. The index is written to a temporary file and mapped as it would be by
+ * SimSearch, the queries are cycled through so successive searches differ.
+ *
+ * @author John May
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+
+    private static final int N_QUERIES = 256;
+
+    @State(Scope.Benchmark)
+    public static class Index {
+
+        @Param({"1000000"})
+        public int size;
+
+        @Param({"1024"})
+        public int length;
+
+        SimilarityIndex     idx;
+        BinaryFingerprint[] queries;
+        File                file;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            Random rnd = new Random(42);
+            List<BinaryFingerprint> fps = Synthetic.fingerprints(rnd, size, length);
+            queries = Synthetic.queries(rnd, fps, N_QUERIES);
+            file = File.createTempFile("fp-idx-bench", ".idx");
+            FingerprintSort.index(fps, length, file);
+            idx = SimilarityIndex.load(file);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            idx.close();
+            if (!file.delete())
+                file.deleteOnExit();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class TopK {
+
+        @Param({"1", "10", "100"})
+        public int k;
+
+        int next;
+    }
+
+    @State(Scope.Thread)
+    public static class Threshold {
+
+        @Param({"0.6", "0.7", "0.8", "0.9"})
+        public double min;
+
+        int next;
+    }
+
+    @Benchmark
+    public void top(Index index, TopK param, Blackhole bh) {
+        BinaryFingerprint query = index.queries[param.next++ % N_QUERIES];
+        index.idx.top(query, param.k, Similarity.Tanimoto, new Sink(bh));
+    }
+
+    @Benchmark
+    public void findAll(Index index, Threshold param, Blackhole bh) {
+        BinaryFingerprint query = index.queries[param.next++ % N_QUERIES];
+        index.idx.findAll(query, param.min, Similarity.Tanimoto, new Sink(bh));
+    }
+
+    // consumes the hits so the search is not optimised away
+    private static final class Sink implements ResultPairEmitter {
+
+        private final Blackhole bh;
+
+        Sink(Blackhole bh) {
+            this.bh = bh;
+        }
+
+        @Override public void emit(int id, double score) {
+            bh.consume(id);
+            bh.consume(score);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.openscience.cdk.nfp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scoring a query against a list of fingerprints with {@link BinaryFingerprint#similarity}, the
+ * score is comparisons per second.
+ *
+ * @author John May
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimilarityBenchmark {
+
+    private static final int N_FPS = 1 << 12;
+
+    @Param({"Tanimoto", "Cosine", "Dice"})
+    public Similarity measure;
+
+    @Param({"1024"})
+    public int length;
+
+    private BinaryFingerprint[] fps;
+    private BinaryFingerprint   query;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(42);
+        List<BinaryFingerprint> list = Synthetic.fingerprints(rnd, N_FPS, length);
+        fps = list.toArray(new BinaryFingerprint[N_FPS]);
+        query = Synthetic.queries(rnd, list, 1)[0];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N_FPS)
+    public double similarity() {
+        double sum = 0;
+        for (BinaryFingerprint fp : fps)
+            sum += query.similarity(fp, measure);
+        return sum;
+    }
+}
@@ -0,0 +1,60 @@
+package org.openscience.cdk.nfp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic fingerprints for the benchmarks. The popcounts are roughly those of ECFP4 on a
+ * drug-like set (1024 bits, mean ~45) so the index bins have a realistic spread, queries are
+ * taken from the set with a few bits flipped so there are close hits to find.
+ *
+ * @author John May
+ */
+final class Synthetic {
+
+    private static final double MEAN_POPCOUNT = 45;
+    private static final double SD_POPCOUNT   = 12;
+
+    private Synthetic() {
+    }
+
+    static BinaryFingerprint fingerprint(Random rnd, int length) {
+        double scale = length / 1024d;
+        int    pop   = (int) Math.round(scale * (MEAN_POPCOUNT + SD_POPCOUNT * rnd.nextGaussian()));
+        pop = Math.max(4, Math.min(length / 2, pop));
+        BinaryFingerprint fp = new BinaryFingerprint(length);
+        while (fp.cardinality() < pop)
+            fp.add(rnd.nextInt(length));
+        return fp;
+    }
+
+    static List<BinaryFingerprint> fingerprints(Random rnd, int n, int length) {
+        List<BinaryFingerprint> fps = new ArrayList<BinaryFingerprint>(n);
+        for (int i = 0; i < n; i++)
+            fps.add(fingerprint(rnd, length));
+        return fps;
+    }
+
+    /**
+     * A copy of the fingerprint with some bits flipped.
+     */
+    static BinaryFingerprint mutate(Random rnd, BinaryFingerprint fp, int nFlips) {
+        long[] words = fp.words.clone();
+        for (int i = 0; i < nFlips; i++) {
+            int bit = rnd.nextInt(fp.length);
+            words[bit >>> 6] ^= 1L << bit;
+        }
+        return BinaryFingerprint.valueOf(words, fp.length);
+    }
+
+    /**
+     * Queries drawn from (and similar to) the entries.
+     */
+    static BinaryFingerprint[] queries(Random rnd, List<BinaryFingerprint> fps, int n) {
+        BinaryFingerprint[] queries = new BinaryFingerprint[n];
+        for (int i = 0; i < n; i++)
+            queries[i] = mutate(rnd, fps.get(rnd.nextInt(fps.size())), 1 + rnd.nextInt(16));
+        return queries;
+    }
+}
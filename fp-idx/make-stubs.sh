@@ -6,3 +6,5 @@ cat src/main/resources/fpsscan-stub.sh target/nfp.jar > fpsscan && chmod +x fpss
 cat src/main/resources/mkidx-stub.sh target/nfp.jar > mkidx && chmod +x mkidx
 cat src/main/resources/simmer-stub.sh target/nfp.jar > simmer && chmod +x simmer
 cat src/main/resources/toper-stub.sh target/nfp.jar > toper && chmod +x toper
+cat src/main/resources/simserver-stub.sh target/nfp.jar > simserver && chmod +x simserver
+cat src/main/resources/idxseg-stub.sh target/nfp.jar > idxseg && chmod +x idxseg
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+
+/**
+ * Maps the bins of an index on demand and keeps at most a budget of bytes mapped. The searches
+ * visit the bins near the query popcount so the bins in the middle of the popcount range are
+ * requested far more often than the rest. When the budget is exceeded the bin requested least
+ * often (and then least recently) is dropped, but only for a bin that has been requested more
+ * often, otherwise the new bin is mapped for the search and not kept. A scan over more bins than
+ * fit therefore does not flush out the bins every search needs. The request counts are halved
+ * periodically so the cache follows a change in the queries. A bin larger than the budget is
+ * never kept.
+ * <br>
+ * A dropped bin is not unmapped, a search may still be reading it, it is released when garbage
+ * collected. The bins still held are unmapped when the index is closed.
+ *
+ * @author John May
+ */
+final class BinCache {
+
+    // the request counts are halved after this many requests
+    private static final int AGE_INTERVAL = 1 << 16;
+
+    private final FileChannel channel;
+    private final int[]       counts;
+    private final long        offset;
+    private final int         recordSize;
+    private final long        budget;
+
+    // the mapped bins (null if not held), how often each has been requested and when last
+    private final ByteBuffer[] buffers;
+    private final int[]        freq;
+    private final long[]       used;
+
+    private long bytes, tick;
+    private long hits, misses, evictions;
+
+    /**
+     * @param channel    the index file
+     * @param counts     the index of the first entry of each bin, the last value is the size
+     * @param offset     where the records start in the file
+     * @param recordSize size of each record (bytes)
+     * @param budget     most bytes to keep mapped
+     */
+    BinCache(FileChannel channel, int[] counts, long offset, int recordSize, long budget) {
+        this.channel = channel;
+        this.counts = counts;
+        this.offset = offset;
+        this.recordSize = recordSize;
+        this.budget = budget;
+        this.buffers = new ByteBuffer[counts.length - 1];
+        this.freq = new int[buffers.length];
+        this.used = new long[buffers.length];
+    }
+
+    /**
+     * The records of a bin, mapped if not already held. Each call is one request, a search
+     * should only request a bin once (see {@link SimilarityIndex.Bins}). A bin is mapped
+     * without holding the lock so a miss does not hold up the other searches.
+     *
+     * @param pop the bin
+     * @return the records, index 0 is the first record of the bin
+     * @throws IOException the bin could not be mapped
+     */
+    ByteBuffer get(int pop) throws IOException {
+
+        synchronized (this) {
+            if (++tick % AGE_INTERVAL == 0) {
+                for (int i = 0; i < freq.length; i++)
+                    freq[i] >>>= 1;
+            }
+
+            freq[pop]++;
+            used[pop] = tick;
+
+            if (buffers[pop] != null) {
+                hits++;
+                return buffers[pop];
+            }
+            misses++;
+        }
+
+        long       size   = (long) (counts[pop + 1] - counts[pop]) * recordSize;
+        ByteBuffer buffer = channel.map(READ_ONLY, offset + (long) counts[pop] * recordSize, size);
+
+        synchronized (this) {
+            // another search may have mapped and kept the bin in the meantime
+            if (buffers[pop] != null)
+                return buffers[pop];
+            if (size > budget)
+                return buffer;
+            while (bytes + size > budget) {
+                if (!evict(pop))
+                    return buffer;
+            }
+            buffers[pop] = buffer;
+            bytes += size;
+            return buffer;
+        }
+    }
+
+    /**
+     * Drop the held bin requested least often to make room for another bin.
+     *
+     * @param pop the bin to make room for
+     * @return a bin was dropped, false if they have all been requested at least as often
+     */
+    private boolean evict(int pop) {
+        int victim = -1;
+        for (int i = 0; i < buffers.length; i++) {
+            if (buffers[i] == null)
+                continue;
+            if (victim < 0 || freq[i] < freq[victim] || freq[i] == freq[victim] && used[i] < used[victim])
+                victim = i;
+        }
+        if (victim < 0 || freq[victim] >= freq[pop])
+            return false;
+        bytes -= buffers[victim].capacity();
+        buffers[victim] = null;
+        evictions++;
+        return true;
+    }
+
+    /**
+     * Unmap the bins still held, the index must no longer be in use.
+     */
+    synchronized void unmap() {
+        for (int i = 0; i < buffers.length; i++) {
+            Unmapper.unmap(buffers[i]);
+            buffers[i] = null;
+        }
+        bytes = 0;
+    }
+
+    /**
+     * Number of requests for a bin that was held.
+     *
+     * @return the hits
+     */
+    synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * Number of requests for a bin that had to be mapped.
+     *
+     * @return the misses
+     */
+    synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * Number of bins dropped to stay within the budget.
+     *
+     * @return the evictions
+     */
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    /**
+     * Number of bytes mapped by the bins held.
+     *
+     * @return the bytes
+     */
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    @Override public synchronized String toString() {
+        return String.format("%d hits, %d misses, %d evictions, %.1f of %.1f MB mapped",
+                             hits, misses, evictions, bytes / 1e6, budget / 1e6);
+    }
+}
@@ -39,16 +39,22 @@ public final class BinaryFingerprint extends Fingerprint {
     final long[] words;
     final int    length;
 
+    /**
+     * An empty fingerprint of 'n' bits, the length need not be a multiple of the word size
+     * (e.g. 166 bit MACCS) but is usually a power of two for hashed fingerprints.
+     *
+     * @param n the length (bits)
+     */
     public BinaryFingerprint(int n) {
-        if (!powerOfTwo(n))
-            throw new IllegalArgumentException();
+        if (n <= 0)
+            throw new IllegalArgumentException("Invalid fingerprint length: " + n);
         this.length = n;
-        this.words = new long[n / WORD_SIZE];
+        this.words = new long[words(n)];
     }
 
     private BinaryFingerprint(int n, long[] words) {
-        if (!powerOfTwo(n))
-            throw new IllegalArgumentException();
+        if (n <= 0)
+            throw new IllegalArgumentException("Invalid fingerprint length: " + n);
         this.length = n;
         this.words = words;
     }
@@ -57,8 +63,18 @@ public final class BinaryFingerprint extends Fingerprint {
         return ((n != 0) && (n & (n - 1)) == 0);
     }
 
+    /**
+     * Number of words needed to store a fingerprint of 'n' bits.
+     */
+    static int words(int n) {
+        return (n + WORD_SIZE - 1) / WORD_SIZE;
+    }
+
     int hash(int x) {
-        return x & length - 1;
+        if (powerOfTwo(length))
+            return x & length - 1;
+        int h = x % length;
+        return h < 0 ? h + length : h;
     }
 
     int add(int x) {
@@ -119,7 +135,7 @@ public final class BinaryFingerprint extends Fingerprint {
 
     void readBytes(ByteBuffer buffer, int length) {
         int n = 0;
-        int nWords = length / 64;
+        int nWords = words(length);
         while (nWords-- > 0) {
             words[n++] = buffer.getLong();
         }
@@ -131,7 +147,7 @@ public final class BinaryFingerprint extends Fingerprint {
     }
 
     static BinaryFingerprint valueOf(long[] words, int len) {
-        return new BinaryFingerprint(len, Arrays.copyOf(words, len / 64));
+        return new BinaryFingerprint(len, Arrays.copyOf(words, words(len)));
     }
 
     static BinaryFingerprint fromBytes(byte[] bytes) {
@@ -150,14 +166,51 @@ public final class BinaryFingerprint extends Fingerprint {
         return fp;
     }
 
+    /**
+     * Fold the fingerprint to 'n' bits, bit 'i' is set in the folded fingerprint if any bit
+     * 'j' with j mod n = i is set. When 'n' is a multiple of the word size the words are
+     * OR'd together, when it is a power of two smaller than a word the word is OR'd with
+     * its upper half until 'n' bits remain.
+     *
+     * @param n the folded length (bits)
+     * @return the folded fingerprint
+     */
     BinaryFingerprint fold(int n) {
         BinaryFingerprint fp = new BinaryFingerprint(n);
-        for (int i = 0; i < length; i++) {
-            if (get(i)) fp.add(i);
+        if (n % WORD_SIZE == 0) {
+            fold(words, fp.words);
+        } else if (powerOfTwo(n)) {
+            long word = 0;
+            for (long w : words)
+                word |= w;
+            for (int width = WORD_SIZE / 2; width >= n; width /= 2)
+                word |= word >>> width;
+            fp.words[0] = word & (-1L >>> (WORD_SIZE - n));
+        } else {
+            for (int i = 0; i < words.length; i++) {
+                for (long word = words[i]; word != 0; word &= word - 1)
+                    fp.add(i * WORD_SIZE + Long.numberOfTrailingZeros(word));
+            }
         }
         return fp;
     }
 
+    /**
+     * Fold the words of a fingerprint into fewer words, word 'i' is OR'd into word i mod
+     * dest.length. The destination is overwritten.
+     *
+     * @param src  the words of the fingerprint
+     * @param dest the words of the folded fingerprint
+     */
+    static void fold(long[] src, long[] dest) {
+        Arrays.fill(dest, 0);
+        for (int i = 0, j = 0; i < src.length; i++) {
+            dest[j] |= src[i];
+            if (++j == dest.length)
+                j = 0;
+        }
+    }
+
     static BinaryFingerprint fromHex(String str) {
         char[] cs = str.toCharArray();
         for (int i = 0; i < cs.length; i += 2) {
@@ -180,10 +233,13 @@ public final class BinaryFingerprint extends Fingerprint {
         return sum;
     }
 
+    /**
+     * Does this fingerprint have every bit of the other fingerprint set.
+     */
     boolean contains(BinaryFingerprint other) {
         assert length == other.length;
         for (int i = 0; i < words.length; i++)
-            if (this.words[i] != (this.words[i] & other.words[i]))
+            if (other.words[i] != (this.words[i] & other.words[i]))
                 return false;
         return true;
     }
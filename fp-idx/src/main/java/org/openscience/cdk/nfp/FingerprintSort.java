@@ -24,11 +24,12 @@
 
 package org.openscience.cdk.nfp;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.List;
 
@@ -52,43 +53,110 @@ public final class FingerprintSort {
     }
 
     static int[] index(List<BinaryFingerprint> src, int length, File f) throws IOException {
-        
-        
-        FileChannel channel = new RandomAccessFile(f, "rw").getChannel();
-
-        int[] count        = new int[length + 1];
-        int   step         = (length / 8);
-
-        ByteBuffer  buffer  = channel.map(FileChannel.MapMode.READ_WRITE,
-                                          0,
-                                          4 + (4 * count.length) + (step * src.size()));
-        
-        
+        return index(src, length, "", f);
+    }
+
+    /**
+     * Write the fingerprints to an index file ordered by popcount. The file starts with a header
+     * (big-endian): the magic number, version, fingerprint length (bits), type (modified UTF-8 as
+     * in {@link DataOutput#writeUTF(String)}), the number of summary sub-blocks (version 2),
+     * the number of bin counts and the counts, where counts[i] is the index of the first entry
+     * with popcount 'i'. The header is padded to a multiple of 8 bytes and the fingerprints
+     * follow, each one stored as whole words.
+     * After the fingerprints (again starting on a multiple of 8 bytes) is a summary of each
+     * entry in the same order, the popcount of each sub-block (see {@link #summaryBlocks(int)})
+     * stored as an unsigned byte.
+     *
+     * @param src    the fingerprints
+     * @param length the fingerprint length (bits)
+     * @param type   the fingerprint type (e.g. from the FPS {@code #type=} header)
+     * @param f      the file to write
+     * @return for each entry in the index, the position of the fingerprint in the input
+     * @throws IOException the index could not be written
+     */
+    static int[] index(List<BinaryFingerprint> src, int length, String type, File f) throws IOException {
+
+        int[] count = new int[length + 2];
+
         for (BinaryFingerprint fp : src)
             count[fp.cardinality() + 1]++;
         for (int i = 1; i < count.length; i++)
             count[i] += count[i - 1];
-        
-        buffer.putInt(count.length);
-        buffer.asIntBuffer().put(count);
-        int offset = buffer.position() + (count.length * 4);
-        
+
         // order stores where each fingerprint appears
         int[] ordering = new int[src.size()];
+        int[] next     = Arrays.copyOf(count, count.length);
         int n = 0;
-        
-        for (BinaryFingerprint fp : src) {
-            int idx = count[fp.cardinality()]++;
-            put(buffer,
-                offset + (step * idx), fp);
-            ordering[idx] = n++; 
+
+        for (BinaryFingerprint fp : src)
+            ordering[next[fp.cardinality()]++] = n++;
+
+        final int    nBlocks = summaryBlocks(length);
+        final byte[] summary = new byte[nBlocks];
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16))) {
+            writeHeader(out, length, type, count);
+            long position = out.size();
+            for (int idx : ordering) {
+                for (long word : src.get(idx).words)
+                    out.writeLong(word);
+                position += 8 * src.get(idx).words.length;
+            }
+            for (long end = align(position); position < end; position++)
+                out.writeByte(0);
+            for (int idx : ordering) {
+                summarise(src.get(idx).words, nBlocks, summary, 0);
+                out.write(summary);
+            }
         }
-        
+
         return ordering;
     }
 
-    static void put(ByteBuffer buffer, int pos, BinaryFingerprint fp) {
-        buffer.position(pos);
-        fp.write(buffer);
+    static void writeHeader(DataOutputStream out, int length, String type, int[] counts) throws IOException {
+        out.writeInt(SimilarityIndex.MAGIC);
+        out.writeInt(SimilarityIndex.VERSION);
+        out.writeInt(length);
+        out.writeUTF(type);
+        out.writeInt(summaryBlocks(length));
+        out.writeInt(counts.length);
+        for (int count : counts)
+            out.writeInt(count);
+        while (out.size() % 8 != 0)
+            out.writeByte(0);
+    }
+
+    /**
+     * Number of sub-blocks summarised for each entry of an index. The blocks are 128 bits
+     * (or 64 bits if there is an odd number of words) so the popcount of a block fits in a byte.
+     *
+     * @param length the fingerprint length (bits)
+     * @return number of sub-blocks
+     */
+    static int summaryBlocks(int length) {
+        int nWords = (length + 63) / 64;
+        return nWords % 2 == 0 ? nWords / 2 : nWords;
+    }
+
+    /**
+     * Store the popcount of each sub-block of a fingerprint.
+     *
+     * @param words   the fingerprint
+     * @param nBlocks number of sub-blocks
+     * @param dest    where to store the counts
+     * @param offset  the index in 'dest' of the first count
+     */
+    static void summarise(long[] words, int nBlocks, byte[] dest, int offset) {
+        final int blockWords = words.length / nBlocks;
+        for (int b = 0, w = 0; b < nBlocks; b++) {
+            int count = 0;
+            for (int j = 0; j < blockWords; j++)
+                count += Long.bitCount(words[w++]);
+            dest[offset + b] = (byte) count;
+        }
+    }
+
+    static long align(long offset) {
+        return (offset + 7) & ~7L;
     }
 }
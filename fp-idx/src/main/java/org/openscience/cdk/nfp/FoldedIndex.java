@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.LongBuffer;
+
+/**
+ * A coarse copy of an index with each fingerprint folded (see {@link BinaryFingerprint#fold(int)})
+ * to fewer bits, e.g. 1024 to 256. It is stored alongside the index (e.g. 'chembl.idx.fold') with
+ * the entries in the same order so the bins and ids are shared. The file (big-endian) has a 24
+ * byte header: the magic number, version, the length of the index fingerprints, the folded
+ * length and the number of entries (then padding). The folded fingerprints follow as whole words.
+ * <br>
+ * The folded fingerprints give an upper bound on the bits an entry has in common with a query,
+ * so a search can rule out most entries on a quarter of the words and only rescore the rest
+ * against the full fingerprints. Each folded bit of the query 'p' is made from c(p) query bits
+ * and there are at most c(p) bits in common that fold to 'p'. The query is split into
+ * planes, the folded bits made from at least 1, 2, 3... bits, and the sum of the bits in common
+ * with each plane is the bound. Hashed fingerprints are sparse so there are only one or two
+ * planes.
+ *
+ * @author John May
+ */
+final class FoldedIndex {
+
+    static final int MAGIC   = 0x4e465046; // 'NFPF'
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 24;
+
+    private FoldedIndex() {
+    }
+
+    /**
+     * The folded index stored alongside an index, e.g. 'chembl.idx.fold' for 'chembl.idx'.
+     *
+     * @param idx the index file
+     * @return the folded index file
+     */
+    static File of(File idx) {
+        return new File(idx.getPath() + ".fold");
+    }
+
+    /**
+     * Can fingerprints of a length be folded to 'n' bits, 'n' must be a whole number of words
+     * and shorter than the length.
+     *
+     * @param length the length (bits)
+     * @param n      the folded length (bits)
+     * @return the fingerprints can be folded
+     */
+    static boolean canFold(int length, int n) {
+        return n > 0 && n % 64 == 0 && n < length;
+    }
+
+    static void writeHeader(DataOutput out, int length, int n, int nEntries) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(length);
+        out.writeInt(n);
+        out.writeInt(nEntries);
+        out.writeInt(0);
+    }
+
+    /**
+     * Split a query into planes of its folded bits, plane 'm' has the bits that at least m+1
+     * query bits fold to. Only the planes with a bit set are returned.
+     *
+     * @param words the query
+     * @param n     the folded length (bits)
+     * @return the planes
+     */
+    static long[][] planes(long[] words, int n) {
+        final int nWords = n / 64;
+        long[][]  planes = new long[(words.length + nWords - 1) / nWords][nWords];
+        for (int i = 0; i < words.length; i++) {
+            long carry = words[i];
+            for (int m = 0; carry != 0 && m < planes.length; m++) {
+                long[] plane = planes[m];
+                long   next  = plane[i % nWords] & carry;
+                plane[i % nWords] |= carry;
+                carry = next;
+            }
+        }
+        int nPlanes = 0;
+        while (nPlanes < planes.length && !empty(planes[nPlanes]))
+            nPlanes++;
+        long[][] dest = new long[nPlanes][];
+        System.arraycopy(planes, 0, dest, 0, nPlanes);
+        return dest;
+    }
+
+    private static boolean empty(long[] words) {
+        for (long word : words)
+            if (word != 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * The most bits an entry can have in common with the query.
+     *
+     * @param planes the query planes
+     * @param folded the folded fingerprints
+     * @param pos    index of the first word of the entry
+     * @return the bound
+     */
+    static int bound(long[][] planes, LongBuffer folded, int pos) {
+        final int nWords = planes.length > 0 ? planes[0].length : 0;
+        int       bound  = 0;
+        for (int w = 0; w < nWords; w++) {
+            long word = folded.get(pos + w);
+            for (long[] plane : planes)
+                bound += Long.bitCount(plane[w] & word);
+        }
+        return bound;
+    }
+}
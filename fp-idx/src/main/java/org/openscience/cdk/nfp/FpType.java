@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.fingerprint.CircularFingerprinter;
+import org.openscience.cdk.fingerprint.ExtendedFingerprinter;
+import org.openscience.cdk.fingerprint.Fingerprinter;
+import org.openscience.cdk.fingerprint.IFingerprinter;
+import org.openscience.cdk.fingerprint.MACCSFingerprinter;
+import org.openscience.cdk.fingerprint.PubchemFingerprinter;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+
+import java.util.Locale;
+
+/**
+ * The fingerprints the tools can calculate, each is named in an FPS file (and index) by its
+ * {@code #type=} as written by cdk2fps. The hashed fingerprints can be any length, MACCS and
+ * PubChem are always the same length. The fingerprinters are not thread safe so a new one should
+ * be created for each thread.
+ *
+ * @author John May
+ */
+enum FpType {
+
+    ECFP0("cdk/ecfp/radius=0"),
+    ECFP2("cdk/ecfp/radius=2"),
+    ECFP4("cdk/ecfp/radius=4"),
+    ECFP6("cdk/ecfp/radius=6"),
+    FCFP0("cdk/fcfp/radius=0"),
+    FCFP2("cdk/fcfp/radius=2"),
+    FCFP4("cdk/fcfp/radius=4"),
+    FCFP6("cdk/fcfp/radius=6"),
+    PATH5("cdk/path/depth=5"),
+    PATH6("cdk/path/depth=6"),
+    PATH7("cdk/path/depth=7"),
+    EXTPATH5("cdk/extpath/depth=5"),
+    EXTPATH6("cdk/extpath/depth=6"),
+    EXTPATH7("cdk/extpath/depth=7"),
+    MACCS("cdk/maccs", 166),
+    PUBCHEM("cdk/pubchem", 881);
+
+    static final int DEFAULT_LENGTH = 1024;
+
+    private final String type;
+    private final int    fixed;
+
+    FpType(String type) {
+        this(type, 0);
+    }
+
+    FpType(String type, int fixed) {
+        this.type = type;
+        this.fixed = fixed;
+    }
+
+    /**
+     * The type as in the FPS {@code #type=} header.
+     *
+     * @return the type
+     */
+    String type() {
+        return type;
+    }
+
+    /**
+     * The length of the fingerprint if a length was requested, MACCS and PubChem ignore the
+     * requested length.
+     *
+     * @param len the requested length
+     * @return the length
+     */
+    int length(int len) {
+        return fixed != 0 ? fixed : len;
+    }
+
+    /**
+     * Create a fingerprinter for this type.
+     *
+     * @param len the length of the hashed fingerprints
+     * @return a new fingerprinter
+     */
+    IFingerprinter create(int len) {
+        switch (this) {
+            case ECFP0:
+                return new CircularFingerprinter(CircularFingerprinter.CLASS_ECFP0, len);
+            case ECFP2:
+                return new CircularFingerprinter(CircularFingerprinter.CLASS_ECFP2, len);
+            case ECFP4:
+                return new CircularFingerprinter(CircularFingerprinter.CLASS_ECFP4, len);
+            case ECFP6:
+                return new CircularFingerprinter(CircularFingerprinter.CLASS_ECFP6, len);
+            case FCFP0:
+                return new CircularFingerprinter(CircularFingerprinter.CLASS_FCFP0, len);
+            case FCFP2:
+                return new CircularFingerprinter(CircularFingerprinter.CLASS_FCFP2, len);
+            case FCFP4:
+                return new CircularFingerprinter(CircularFingerprinter.CLASS_FCFP4, len);
+            case FCFP6:
+                return new CircularFingerprinter(CircularFingerprinter.CLASS_FCFP6, len);
+            case PATH5:
+                return new Fingerprinter(len, 5);
+            case PATH6:
+                return new Fingerprinter(len, 6);
+            case PATH7:
+                return new Fingerprinter(len, 7);
+            case EXTPATH5:
+                return new ExtendedFingerprinter(len, 5);
+            case EXTPATH6:
+                return new ExtendedFingerprinter(len, 6);
+            case EXTPATH7:
+                return new ExtendedFingerprinter(len, 7);
+            case MACCS:
+                return new MACCSFingerprinter();
+            case PUBCHEM:
+                return new PubchemFingerprinter(SilentChemObjectBuilder.getInstance());
+            default:
+                throw new IllegalStateException("No fingerprinter for " + this);
+        }
+    }
+
+    /**
+     * Calculate the fingerprint of a molecule.
+     *
+     * @param fpr a fingerprinter of this type
+     * @param mol the molecule
+     * @param len the length of the fingerprint
+     * @return the fingerprint
+     * @throws CDKException the fingerprint could not be calculated
+     */
+    static BinaryFingerprint fingerprint(IFingerprinter fpr, IAtomContainer mol, int len) throws CDKException {
+        return BinaryFingerprint.valueOf(fpr.getBitFingerprint(mol).asBitSet().toLongArray(), len);
+    }
+
+    /**
+     * The fingerprint with a name (e.g. 'ecfp4') or {@code #type=} (e.g. 'cdk/ecfp/radius=4').
+     *
+     * @param name the name or type
+     * @return the fingerprint type, null if there is none
+     */
+    static FpType of(String name) {
+        for (FpType fp : values()) {
+            if (fp.name().equals(name.toUpperCase(Locale.ROOT)) || fp.type.equals(name))
+                return fp;
+        }
+        return null;
+    }
+
+    /**
+     * The fingerprint of an FPS file or index with a {@code #type=}. A file without a type is
+     * from before the type was recorded, when only ECFP4 was calculated.
+     *
+     * @param type the type, may be empty
+     * @return the fingerprint type, null if the type is not known
+     */
+    static FpType ofFile(String type) {
+        return type == null || type.isEmpty() ? ECFP4 : of(type);
+    }
+
+    /**
+     * The names of the fingerprint types, for usage messages.
+     *
+     * @return the names, e.g. 'ecfp4, path7, maccs'
+     */
+    static String names() {
+        StringBuilder sb = new StringBuilder();
+        for (FpType fp : values()) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(fp.name().toLowerCase(Locale.ROOT));
+        }
+        return sb.toString();
+    }
+}
@@ -1,173 +1,430 @@
 package org.openscience.cdk.nfp;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
 
 final class FpsFmt {
 
     static final char[] hex = "0123456789abcdef".toCharArray();
-    static final int[][] ints = genArray(); 
 
+    // SWAR constants, a byte repeated in each lane of a long
+    private static final long ONES   = 0x0101010101010101L;
+    private static final long HIGH   = 0x8080808080808080L;
+    private static final long LOW7   = 0x7f7f7f7f7f7f7f7fL;
+    private static final long NIBBLE = 0x0f0f0f0f0f0f0f0fL;
+    private static final long LETTER = 0x4040404040404040L;
+    private static final long PAIR   = 0x000f000f000f000fL;
+
+    private static final long INVALID = -1;
+
+    // value of each (ASCII) hex character, -1 if not hex
+    private static final byte[] HEX_VALUE = new byte[128];
+
+    static {
+        Arrays.fill(HEX_VALUE, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUE[hex[i]] = (byte) i;
+            HEX_VALUE[Character.toUpperCase(hex[i])] = (byte) i;
+        }
+    }
+
+    /**
+     * Number of hex characters for a fingerprint of 'len' bits, two for each (partial) byte.
+     *
+     * @param len fingerprint length (bits)
+     * @return the hex length
+     */
+    static int hexLength(int len) {
+        return 2 * ((len + 7) / 8);
+    }
+
+    /**
+     * Decode the hex fingerprint at the start of a string (e.g. an FPS line).
+     *
+     * @param str   the hex string
+     * @param len   fingerprint length (bits)
+     * @param words the words to fill, space for (len + 63) / 64
+     * @return the string was long enough and only had hex characters
+     */
     static boolean readHex(String str, int len, long[] words) {
         assert str != null;
         assert words != null;
 
-        int nWords = 0;
-        int nBytes = words.length * 16;
-        for (int i = 0; i < nBytes; ++i, nWords++) {
-            words[nWords] = ((long) hexToByte(str.charAt(i), str.charAt(++i)));
-            words[nWords] |= ((long) hexToByte(str.charAt(++i), str.charAt(++i))) << 8L;
-            words[nWords] |= ((long) hexToByte(str.charAt(++i), str.charAt(++i))) << 16L;
-            words[nWords] |= ((long) hexToByte(str.charAt(++i), str.charAt(++i))) << 24L;
-            words[nWords] |= ((long) hexToByte(str.charAt(++i), str.charAt(++i))) << 32L;
-            words[nWords] |= ((long) hexToByte(str.charAt(++i), str.charAt(++i))) << 40L;
-            words[nWords] |= ((long) hexToByte(str.charAt(++i), str.charAt(++i))) << 48L;
-            words[nWords] |= ((long) hexToByte(str.charAt(++i), str.charAt(++i))) << 56L;
+        int nBytes = (len + 7) / 8;
+        if (str.length() < 2 * nBytes)
+            return false;
+
+        Arrays.fill(words, 0, (len + 63) / 64, 0);
+
+        // 4 bytes at a time then any left over
+        int i = 0, b = 0;
+        for (; b + 4 <= nBytes; b += 4, i += 8) {
+            long x = decode(pack(str, i));
+            if (x == INVALID)
+                return false;
+            words[b >> 3] |= x << 8 * (b & 7);
+        }
+        for (; b < nBytes; b++, i += 2) {
+            int x = hexToByte(str.charAt(i), str.charAt(i + 1));
+            if (x < 0)
+                return false;
+            words[b >> 3] |= (long) x << 8 * (b & 7);
         }
 
         return true;
     }
 
+    /**
+     * Decode a hex fingerprint from the buffer, the buffer is advanced past the hex
+     * ({@link #hexLength(int)} bytes) even if it was invalid so the rest of the line can be
+     * skipped. Each step reads 8 characters as a long and decodes them together (SWAR).
+     *
+     * @param buf   the buffer, positioned at the start of the hex
+     * @param len   fingerprint length (bits)
+     * @param words the words to fill, space for (len + 63) / 64
+     * @return the buffer had enough bytes and they were all hex characters
+     */
     static boolean readHex(ByteBuffer buf, int len, long[] words) {
         assert buf != null;
         assert words != null;
 
-        int nWords = 0;
-        for (int i = 0; nWords < words.length; nWords++) {
-                        
-            words[nWords] = ((long) hexToByte((char)buf.get(), (char)buf.get()));
-            words[nWords] |= ((long) hexToByte((char)buf.get(), (char)buf.get())) << 8L;
-            words[nWords] |= ((long) hexToByte((char)buf.get(), (char)buf.get())) << 16L;
-            words[nWords] |= ((long) hexToByte((char)buf.get(), (char)buf.get())) << 24L;
-            words[nWords] |= ((long) hexToByte((char)buf.get(), (char)buf.get())) << 32L;
-            words[nWords] |= ((long) hexToByte((char)buf.get(), (char)buf.get())) << 40L;
-            words[nWords] |= ((long) hexToByte((char)buf.get(), (char)buf.get())) << 48L;
-            words[nWords] |= ((long) hexToByte((char)buf.get(), (char)buf.get())) << 56L;
+        int nBytes = (len + 7) / 8;
+        if (buf.remaining() < 2 * nBytes) {
+            buf.position(buf.limit());
+            return false;
         }
 
-        return true;
-    }
+        Arrays.fill(words, 0, (len + 63) / 64, 0);
 
-    static boolean writeHex(StringBuilder sb, int len, long[] words) {
-        int nWords = 0;
-        if (words.length * 64 < len)
-            words = Arrays.copyOf(words, len / 64);
-        for (int i = 0; i < len; i += 64) {
-            long word = words[nWords++];
-            sb.append(hex[((int) (word >>> 4)) & 0xf]);
-            sb.append(hex[((int) word) & 0xf]);
-            word >>>= 8L;
-            sb.append(hex[((int) (word >>> 4)) & 0xf]);
-            sb.append(hex[((int) word) & 0xf]);
-            word >>>= 8L;
-            sb.append(hex[((int) (word >>> 4)) & 0xf]);
-            sb.append(hex[((int) word) & 0xf]);
-            word >>>= 8L;
-            sb.append(hex[((int) (word >>> 4)) & 0xf]);
-            sb.append(hex[((int) word) & 0xf]);
-            word >>>= 8L;
-            sb.append(hex[((int) (word >>> 4)) & 0xf]);
-            sb.append(hex[((int) word) & 0xf]);
-            word >>>= 8L;
-            sb.append(hex[((int) (word >>> 4)) & 0xf]);
-            sb.append(hex[((int) word) & 0xf]);
-            word >>>= 8L;
-            sb.append(hex[((int) (word >>> 4)) & 0xf]);
-            sb.append(hex[((int) word) & 0xf]);
-            word >>>= 8L;
-            sb.append(hex[((int) (word >>> 4)) & 0xf]);
-            sb.append(hex[((int) word) & 0xf]);
+        boolean valid = true;
+        boolean swap  = buf.order() == ByteOrder.BIG_ENDIAN;
+        int     b     = 0;
+        for (; b + 4 <= nBytes; b += 4) {
+            long x = decode(swap ? Long.reverseBytes(buf.getLong()) : buf.getLong());
+            if (x == INVALID)
+                valid = false;
+            words[b >> 3] |= x << 8 * (b & 7);
+        }
+        for (; b < nBytes; b++) {
+            int x = hexToByte((char) (buf.get() & 0xff), (char) (buf.get() & 0xff));
+            if (x < 0)
+                valid = false;
+            words[b >> 3] |= (long) (x & 0xff) << 8 * (b & 7);
         }
 
-        return true;
+        return valid;
     }
 
+    /**
+     * Decode a pair of hex characters.
+     *
+     * @return the byte, or -1 if either character was not hex
+     */
     static int hexToByte(char hi, char lo) {
-        return ints[hi][lo];
-        //return (hexToNibble(hi) << 4) | hexToNibble(lo);
-    }
-    
-    static int hexToNibble(char c) {
-        switch (c) {
-            case '0':
-                return 0; // 0000
-            case '1':
-                return 1; // 0001
-            case '2':
-                return 2; // 0010
-            case '3':
-                return 3; // 0011
-            case '4':
-                return 4; // 0100
-            case '5':
-                return 5; // 0101
-            case '6':
-                return 6; // 0110
-            case '7':
-                return 7; // 0111
-            case '8':
-                return 8; // 1000
-            case '9':
-                return 9; // 1001
-            case 'a':
-                return 10; // 1010
-            case 'b':
-                return 11; // 1011
-            case 'c':
-                return 12; // 1100
-            case 'd':
-                return 13; // 1101
-            case 'e':
-                return 14; // 1110
-            case 'f':
-                return 15; // 1111
-            case 'A':
-                return 10;
-            case 'B':
-                return 11;
-            case 'C':
-                return 12;
-            case 'D':
-                return 13;
-            case 'E':
-                return 14;
-            case 'F':
-                return 15;
+        if ((hi | lo) >= HEX_VALUE.length)
+            return -1;
+        int h = HEX_VALUE[hi], l = HEX_VALUE[lo];
+        return (h | l) < 0 ? -1 : h << 4 | l;
+    }
+
+    /**
+     * Read the separator after the hex of an FPS line, usually a tab but a space is also
+     * accepted. If the line ends instead (no id) the line ending is read.
+     *
+     * @param buf the buffer, positioned after the hex
+     * @return 1 if an id follows, 0 if the line has ended or -1 if the hex was followed by
+     *         something else (e.g. the fingerprint is longer than expected)
+     */
+    static int readSeparator(ByteBuffer buf) {
+        if (!buf.hasRemaining())
+            return 0;
+        switch (buf.get()) {
+            case '\t':
+            case ' ':
+                return 1;
+            case '\r':
+                if (buf.hasRemaining() && buf.get(buf.position()) == '\n')
+                    buf.get();
+                return 0;
+            case '\n':
+                return 0;
             default:
-                throw new RuntimeException();
+                return -1;
+        }
+    }
+
+    /**
+     * The 8 characters of a string from 'i' as a little-endian long, a character that does not
+     * fit in a byte is packed as 0xff (not hex).
+     */
+    private static long pack(String str, int i) {
+        long x = 0;
+        for (int j = 7; j >= 0; j--) {
+            char c = str.charAt(i + j);
+            x = x << 8 | (c < 0x80 ? c : 0xff);
         }
+        return x;
     }
 
-    private static void genSwitch() {
-        // N.b slower than array but provides error handling
-        System.out.println("switch(c1) {");
-        for (char c1 : "0123456789ABCDEFabcdef".toCharArray()) {
-            System.out.println("\tcase '" + c1 + "':");
-            System.out.println("\t\tswitch(c2) {");
-            for (char c2 : "0123456789ABCDEFabcdef".toCharArray()) {
-                System.out.print("\t\tcase '" + c2 + "': ");
-                int x = Integer.parseInt(new String(new char[]{c1, c2}), 16);
-                System.out.print("return " + x + ";\n");
+    /**
+     * Decode 8 hex characters (little-endian, the first character in the low byte) to 4 bytes,
+     * the first pair of characters is the low byte of the result.
+     *
+     * @param x the characters
+     * @return the decoded bytes, or {@link #INVALID} if a character was not hex
+     */
+    static long decode(long x) {
+        // every byte must be 0-9, A-F or a-f
+        long valid = between(x, '0' - 1, '9' + 1) | between(x, 'A' - 1, 'F' + 1) | between(x, 'a' - 1, 'f' + 1);
+        if (valid != HIGH)
+            return INVALID;
+
+        // nibble value of each byte, letters have 0x40 set and a low nibble 1-6
+        long v = (x & NIBBLE) + ((x & LETTER) >>> 6) * 9;
+
+        // combine each pair of nibbles into a byte, then pack the bytes together
+        long t = (v & PAIR) << 4 | (v >>> 8) & PAIR;
+        t = (t | t >>> 8) & 0x0000ffff0000ffffL;
+        return (t | t >>> 16) & 0xffffffffL;
+    }
+
+    /**
+     * The high bit of each byte 'b' of 'x' where m < b < n, bytes of 128 or more are never
+     * between (Bit Twiddling Hacks, 'Determine if a word has a byte between m and n').
+     */
+    private static long between(long x, int m, int n) {
+        return (ONES * (127 + n) - (x & LOW7) & ~x & (x & LOW7) + ONES * (127 - m)) & HIGH;
+    }
+
+    /**
+     * Encode 4 bytes as 8 lower case hex characters (little-endian, as {@link #decode(long)}).
+     */
+    static long encode(int bytes) {
+        // spread each byte to a pair of lanes, the high nibble first
+        long u = bytes & 0xffffffffL;
+        u = (u | u << 16) & 0x0000ffff0000ffffL;
+        u = (u | u << 8) & 0x00ff00ff00ff00ffL;
+        long v = (u >>> 4) & PAIR | (u & PAIR) << 8;
+        // '0' + v, and another 39 to get to 'a' when v > 9
+        return v + ONES * '0' + ((v + ONES * 0x76 & HIGH) >>> 7) * ('a' - '0' - 10);
+    }
+
+    /**
+     * Map a file as a series of read-only buffers that each end on a line boundary (or the end
+     * of the file) so no record is split between two buffers.
+     *
+     * @param channel   the file
+     * @param chunkSize maximum size of each buffer (bytes)
+     * @return the mapped buffers, in file order
+     * @throws IOException the file could not be mapped or has a line longer than the chunk size
+     */
+    static List<MappedByteBuffer> mapLines(FileChannel channel, int chunkSize) throws IOException {
+        List<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+        long size  = channel.size();
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(size, start + chunkSize);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            if (end < size) {
+                int last = (int) (end - start) - 1;
+                while (last >= 0 && buffer.get(last) != '\n')
+                    last--;
+                if (last < 0)
+                    throw new IOException("Line longer than " + chunkSize + " bytes at offset " + start);
+                buffer.limit(last + 1);
+                end = start + last + 1;
             }
-            System.out.print("\t\tdefault: ");
-            System.out.print("throw new RuntimeException(\"invalid hex\");\n");
-            System.out.println("\t\t}");
+            chunks.add(buffer);
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * The header of an FPS file, the lines at the start that begin with '#' (e.g. '#FPS1',
+     * '#num_bits=166', '#type=cdk/maccs'). If there is no '#num_bits' the length is taken from
+     * the hex of the first fingerprint, 4 bits per character.
+     */
+    static final class Header {
+
+        // fingerprint length (bits) and type, the type is empty if not specified
+        final int    numBits;
+        final String type;
+
+        // the number of lines and bytes in the header
+        final int    nLines;
+        final int    size;
+
+        Header(int numBits, String type, int nLines, int size) {
+            this.numBits = numBits;
+            this.type = type;
+            this.nLines = nLines;
+            this.size = size;
         }
-        System.out.print("\t\tdefault: ");
-        System.out.print("throw new RuntimeException(\"invalid hex\");\n");
-        System.out.println("}");
     }
 
-    private static int[][] genArray() {
-        int[][] xs = new int['f' + 1][];
-        for (char c1 : "0123456789ABCDEFabcdef".toCharArray()) {
-            xs[c1] = new int['f' + 1];
-            for (char c2 : "0123456789ABCDEFabcdef".toCharArray()) {
-                xs[c1][c2] = Integer.parseInt(new String(new char[]{c1, c2}), 16);
+    /**
+     * Read the header at the start of an FPS file, the buffer position is not changed.
+     *
+     * @param buf the start of the file
+     * @return the header
+     * @throws IOException the header was invalid or the length could not be determined
+     */
+    static Header readHeader(ByteBuffer buf) throws IOException {
+        ByteBuffer view    = buf.duplicate();
+        int        numBits = -1;
+        String     type    = "";
+        int        nLines  = 0;
+
+        while (view.hasRemaining() && view.get(view.position()) == '#') {
+            String line = readLine(view);
+            nLines++;
+            if (line.startsWith("#num_bits=")) {
+                try {
+                    numBits = Integer.parseInt(line.substring(10).trim());
+                } catch (NumberFormatException e) {
+                    numBits = 0;
+                }
+                if (numBits <= 0)
+                    throw new IOException("Invalid fingerprint length on line " + nLines + ": " + line);
+            } else if (line.startsWith("#type=")) {
+                type = line.substring(6).trim();
             }
         }
-        return xs;
+
+        int size = view.position() - buf.position();
+
+        if (numBits < 0) {
+            int n = 0;
+            while (view.hasRemaining()) {
+                byte b = view.get();
+                // non-ASCII bytes (negative) end the fingerprint
+                if (b < 0 || HEX_VALUE[b] < 0)
+                    break;
+                n++;
+            }
+            if (n == 0)
+                throw new IOException("No #num_bits header or fingerprint to get the length from");
+            numBits = 4 * n;
+        }
+
+        return new Header(numBits, type, nLines, size);
+    }
+
+    /**
+     * The header lines of an FPS (version 1) file.
+     *
+     * @param numBits  fingerprint length (bits)
+     * @param type     fingerprint type, e.g. 'cdk/ecfp/radius=4'
+     * @param software the program that wrote the file
+     * @param source   the input the fingerprints were generated from, may be null
+     * @return the header, each line ends with a newline
+     */
+    static String header(int numBits, String type, String software, String source) {
+        SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.ROOT);
+        date.setTimeZone(TimeZone.getTimeZone("UTC"));
+        StringBuilder sb = new StringBuilder();
+        sb.append("#FPS1\n");
+        sb.append("#num_bits=").append(numBits).append('\n');
+        sb.append("#type=").append(type).append('\n');
+        sb.append("#software=").append(software).append('\n');
+        if (source != null)
+            sb.append("#source=").append(source).append('\n');
+        sb.append("#date=").append(date.format(new Date())).append('\n');
+        return sb.toString();
+    }
+
+    // a line (UTF-8) without the line ending
+    private static String readLine(ByteBuffer buf) {
+        int start = buf.position();
+        int end   = start;
+        while (buf.hasRemaining() && buf.get() != '\n')
+            end++;
+        if (end > start && buf.get(end - 1) == '\r')
+            end--;
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = buf.get(start + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static boolean writeHex(StringBuilder sb, int len, long[] words) {
+        int nBytes = (len + 7) / 8;
+        for (int b = 0; b < nBytes; b++) {
+            int x = (int) (word(words, b) >>> 8 * (b & 7));
+            sb.append(hex[(x >>> 4) & 0xf]);
+            sb.append(hex[x & 0xf]);
+        }
+        return true;
     }
 
+    /**
+     * Encode a fingerprint as hex (as in an FPS file) into a byte array, this is the
+     * counterpart of {@link #readHex(ByteBuffer, int, long[])}. Words missing from the end
+     * of 'words' (e.g. from {@link java.util.BitSet#toLongArray()}) are written as zeros.
+     *
+     * @param dest  the destination, must have space for {@link #hexLength(int)} bytes from 'off'
+     * @param off   where to start writing
+     * @param len   fingerprint length (bits)
+     * @param words the fingerprint
+     * @return the offset after the hex
+     */
+    static int writeHex(byte[] dest, int off, int len, long[] words) {
+        int nBytes = (len + 7) / 8;
+        int b      = 0;
+        for (; b + 4 <= nBytes; b += 4, off += 8)
+            putLong(dest, off, encode((int) (word(words, b) >>> 8 * (b & 7))));
+        for (; b < nBytes; b++) {
+            int x = (int) (word(words, b) >>> 8 * (b & 7));
+            dest[off++] = (byte) hex[(x >>> 4) & 0xf];
+            dest[off++] = (byte) hex[x & 0xf];
+        }
+        return off;
+    }
 
-}
\ No newline at end of file
+    /**
+     * Encode a fingerprint as hex (as in an FPS file) into a buffer.
+     *
+     * @param dest  the destination, must have {@link #hexLength(int)} bytes remaining
+     * @param len   fingerprint length (bits)
+     * @param words the fingerprint
+     * @see #writeHex(byte[], int, int, long[])
+     */
+    static void writeHex(ByteBuffer dest, int len, long[] words) {
+        int     nBytes = (len + 7) / 8;
+        boolean swap   = dest.order() == ByteOrder.BIG_ENDIAN;
+        int     b      = 0;
+        for (; b + 4 <= nBytes; b += 4) {
+            long x = encode((int) (word(words, b) >>> 8 * (b & 7)));
+            dest.putLong(swap ? Long.reverseBytes(x) : x);
+        }
+        for (; b < nBytes; b++) {
+            int x = (int) (word(words, b) >>> 8 * (b & 7));
+            dest.put((byte) hex[(x >>> 4) & 0xf]);
+            dest.put((byte) hex[x & 0xf]);
+        }
+    }
+
+    // the word holding byte 'b', zero if it is past the end
+    private static long word(long[] words, int b) {
+        return (b >> 3) < words.length ? words[b >> 3] : 0;
+    }
+
+    private static void putLong(byte[] dest, int off, long x) {
+        for (int i = 0; i < 8; i++) {
+            dest[off + i] = (byte) x;
+            x >>>= 8;
+        }
+    }
+}
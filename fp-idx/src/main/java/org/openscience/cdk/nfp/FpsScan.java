@@ -1,22 +1,38 @@
 package org.openscience.cdk.nfp;
 
 import org.openscience.cdk.exception.CDKException;
-import org.openscience.cdk.fingerprint.CircularFingerprinter;
 import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.silent.SilentChemObjectBuilder;
 import org.openscience.cdk.smiles.SmilesParser;
 
-import java.io.BufferedWriter;
-import java.io.File;
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Linear scan of an FPS file filtering out all those that
  * match the query smiles (provided) above a given threshold.
+ * The query is fingerprinted with the type and length in the FPS header.
+ * The file is mapped and split into line aligned regions that are scanned
+ * in parallel with {@code -Dthreads=8}. Each row is decoded into a scratch
+ * array and only scored if its popcount could reach the threshold. The hits
+ * of each region are sorted and merged, the output is best first and does not
+ * depend on the number of threads.
  *
  * @author John May
  */
@@ -25,6 +41,9 @@ public class FpsScan {
     private static final char   SEPARATOR         = '\t';
     private static final double DEFAULT_THRESHOLD = 0.8;
 
+    // number of threads used to scan the file
+    private static final int THREADS = Math.max(1, Integer.getInteger("threads", 1));
+
     public static void main(String[] args) throws IOException, CDKException {
 
         if (args.length < 2) {
@@ -36,56 +55,235 @@ public class FpsScan {
         final String smi = args[1];
         final double lim = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
 
-        final int len = 1024;
-        final long[] words = new long[len / 64];
+        long t0 = System.nanoTime();
 
-        // generate query fp (TODO make choosable)
-        CircularFingerprinter fpr = new CircularFingerprinter(CircularFingerprinter.CLASS_ECFP4);
-        IAtomContainer container = new SmilesParser(SilentChemObjectBuilder.getInstance()).parseSmiles(smi);
-        BinaryFingerprint qFp = BinaryFingerprint.valueOf(fpr.getBitFingerprint(container).asBitSet().toLongArray(), len);
+        // the mapped regions stay valid once the channel is closed
+        List<MappedByteBuffer> regions;
+        try (FileChannel in = new FileInputStream(fpsPath).getChannel()) {
+            regions = FpsFmt.mapLines(in, FpsToIdx.chunkSize(in.size(), THREADS));
+        }
+        if (regions.isEmpty())
+            throw new IOException(fpsPath + " is empty");
 
-        int cnt = 0;
-        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(System.out));
-        long t0 = System.nanoTime();
+        // the fingerprint length and type are from the header (or the first fingerprint)
+        final FpsFmt.Header header = FpsFmt.readHeader(regions.get(0));
+        final int len = header.numBits;
+        final FpType fp = FpType.ofFile(header.type);
+        if (fp == null)
+            throw new IOException("Can not fingerprint the query, unknown fingerprint type " + header.type + " in " + fpsPath);
 
-        FileChannel in = new FileInputStream(fpsPath).getChannel();
-        ByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, new File(fpsPath).length());
+        // generate query fp
+        IAtomContainer container = new SmilesParser(SilentChemObjectBuilder.getInstance()).parseSmiles(smi);
+        BinaryFingerprint qFp = FpType.fingerprint(fp.create(len), container, len);
 
-        StringBuilder idStrBldr = new StringBuilder();
+        List<Region> tasks = new ArrayList<Region>();
+        for (MappedByteBuffer buffer : regions)
+            tasks.add(new Region(buffer, tasks.isEmpty() ? header.size : 0, len, qFp, Similarity.Tanimoto, lim));
 
-        while (buffer.hasRemaining()) {
+        List<Hit[]> hits = scan(tasks);
 
-            // reset
-            idStrBldr.setLength(0);
+        // report the first invalid line, counting the lines of the regions before it
+        int line = header.nLines;
+        for (Region region : tasks) {
+            if (region.invalid >= 0)
+                throw new IOException("Invalid fingerprint on line " + (line + region.invalid + 1) + " of " + fpsPath
+                                      + ", expected " + FpsFmt.hexLength(len) + " hex characters (" + len + " bits)");
+            line += region.nLines;
+        }
 
-            FpsFmt.readHex(buffer, len, words); // hex bit set
-            buffer.get(); // tab
-            readToEnd(buffer, idStrBldr); // id
+        int cnt = write(hits, new BufferedOutputStream(System.out, 1 << 16));
+        long t1 = System.nanoTime();
+        System.err.printf("\rScanned %d fingerprints (%d hits) in %.2fs \n", line - header.nLines, cnt, (t1 - t0) / 1e9);
+    }
 
-            BinaryFingerprint dFp = BinaryFingerprint.valueOf(words, len);
-            double t = qFp.similarity(dFp, Similarity.Tanimoto);
-            boolean display = t >= lim;
+    /**
+     * Scan the regions, on a pool if there is more than one thread.
+     *
+     * @return the sorted hits of each region
+     */
+    static List<Hit[]> scan(List<Region> tasks) throws IOException {
+        List<Hit[]> hits = new ArrayList<Hit[]>(tasks.size());
+        if (THREADS == 1 || tasks.size() == 1) {
+            for (Region task : tasks)
+                hits.add(task.call());
+            return hits;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(THREADS, tasks.size()));
+        try {
+            for (Future<Hit[]> future : pool.invokeAll(tasks))
+                hits.add(future.get());
+            return hits;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Merge the sorted hits of each region and write them (id and score) best first, hits with
+     * the same score are in file order.
+     *
+     * @return number of hits
+     */
+    static int write(final List<Hit[]> hits, OutputStream out) throws IOException {
 
-            if (display) {
-                bw.write(idStrBldr.toString());
-                bw.write(SEPARATOR);
-                bw.write(String.format("%.2f", t));
-                bw.newLine();
+        // a cursor (region, hit) for each region, ordered by the score of the hit it is at and
+        // then the region, the lines are only ordered within a region
+        PriorityQueue<int[]> queue = new PriorityQueue<int[]>(Math.max(1, hits.size()), new Comparator<int[]>() {
+            @Override public int compare(int[] a, int[] b) {
+                int cmp = Double.compare(hits.get(b[0])[b[1]].score, hits.get(a[0])[a[1]].score);
+                return cmp != 0 ? cmp : Integer.compare(a[0], b[0]);
             }
+        });
+        for (int i = 0; i < hits.size(); i++) {
+            if (hits.get(i).length > 0)
+                queue.add(new int[]{i, 0});
         }
-        long t1 = System.nanoTime();
-        in.close();
-        bw.close();
-        System.err.printf("\rScanned in %.2fs \n", (t1 - t0) / 1e9);
+
+        StringBuilder sb  = new StringBuilder();
+        int           cnt = 0;
+        while (!queue.isEmpty()) {
+            int[] cursor = queue.poll();
+            Hit   hit    = hits.get(cursor[0])[cursor[1]];
+            if (++cursor[1] < hits.get(cursor[0]).length)
+                queue.add(cursor);
+
+            sb.setLength(0);
+            sb.append(hit.id).append(SEPARATOR);
+            appendScore(sb, hit.score);
+            sb.append('\n');
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            cnt++;
+        }
+        out.flush();
+        return cnt;
+    }
+
+    // the score with 2 decimal places
+    static void appendScore(StringBuilder sb, double score) {
+        long fixed = Math.round(score * 100);
+        sb.append(fixed / 100).append('.');
+        long frac = fixed % 100;
+        if (frac < 10)
+            sb.append('0');
+        sb.append(frac);
     }
 
-    static void readToEnd(ByteBuffer buffer, StringBuilder sb) {
-        while (buffer.hasRemaining()) {
-            char c = (char) buffer.get();
-            if (c == '\n') return;
-            sb.append(c);
+    /**
+     * A hit, the order (best first) is by score and then line in the region.
+     */
+    static final class Hit implements Comparable<Hit> {
+
+        final double score;
+        final int    line;
+        final String id;
+
+        Hit(double score, int line, String id) {
+            this.score = score;
+            this.line = line;
+            this.id = id;
+        }
+
+        @Override public int compareTo(Hit that) {
+            int cmp = Double.compare(that.score, this.score);
+            return cmp != 0 ? cmp : Integer.compare(this.line, that.line);
         }
     }
 
+    /**
+     * Scans a line aligned region of the file. Each row is decoded into a scratch array, the
+     * popcount is checked against the {@link Measure#bound(int, int, int)} before the bits in
+     * common with the query are counted and the id is only read for a hit.
+     */
+    static final class Region implements Callable<Hit[]> {
+
+        private final ByteBuffer buffer;
+        private final int        start;
+        private final int        len;
+        private final long[]     query;
+        private final int        queryCardinality;
+        private final Measure    measure;
+        private final double     threshold;
+
+        // number of lines scanned and the first (in this region) with an invalid fingerprint
+        int nLines;
+        int invalid = -1;
+
+        /**
+         * @param buffer    the region
+         * @param start     where the fingerprints start, after the header in the first region
+         * @param len       fingerprint length (bits)
+         * @param query     the query fingerprint
+         * @param measure   similarity measure
+         * @param threshold minimum similarity
+         */
+        Region(ByteBuffer buffer, int start, int len, BinaryFingerprint query, Measure measure, double threshold) {
+            this.buffer = buffer;
+            this.start = start;
+            this.len = len;
+            this.query = query.words;
+            this.queryCardinality = query.cardinality();
+            this.measure = measure;
+            this.threshold = threshold;
+        }
+
+        @Override public Hit[] call() {
+
+            final ByteBuffer buffer = this.buffer.duplicate();
+            final long[]     words  = new long[query.length];
+            final List<Hit>  hits   = new ArrayList<Hit>();
+
+            // the popcounts that can reach the threshold, sized for the stored words in case
+            // bits past the length are set
+            final boolean[] reachable = new boolean[64 * words.length + 1];
+            for (int pop = 0; pop < reachable.length; pop++)
+                reachable[pop] = measure.bound(queryCardinality, pop, len) >= threshold;
+
+            buffer.position(start);
+            while (buffer.hasRemaining()) {
 
+                int sep;
+                if (!FpsFmt.readHex(buffer, len, words) || (sep = FpsFmt.readSeparator(buffer)) < 0) {
+                    invalid = nLines;
+                    break;
+                }
+                int idStart = buffer.position();
+                int idLen   = sep > 0 ? FpsToIdx.skipToEnd(buffer) : 0;
+                nLines++;
+
+                int pop = 0;
+                for (long word : words)
+                    pop += Long.bitCount(word);
+                if (!reachable[pop])
+                    continue;
+
+                int both = 0;
+                for (int i = 0; i < words.length; i++)
+                    both += Long.bitCount(query[i] & words[i]);
+
+                int    onlyA = queryCardinality - both;
+                int    onlyB = pop - both;
+                double sim   = measure.compute(onlyA, onlyB, both, len - (both + onlyA + onlyB));
+
+                if (sim >= threshold)
+                    hits.add(new Hit(sim, nLines, id(buffer, idStart, idLen)));
+            }
+
+            Hit[] sorted = hits.toArray(new Hit[hits.size()]);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        private static String id(ByteBuffer buffer, int start, int length) {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++)
+                bytes[i] = buffer.get(start + i);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
 }
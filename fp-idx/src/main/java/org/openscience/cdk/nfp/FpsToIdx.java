@@ -1,26 +1,61 @@
 package org.openscience.cdk.nfp;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.BitSet;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * Convert an FPS file to a binary index.
+ * Convert an FPS file to a binary index. The index is built in two passes over
+ * the (memory mapped) FPS file, the first counts the popcounts and the second
+ * writes each fingerprint directly to its slot in the index. Ids are spilled
+ * to a temporary file and reordered afterwards. Memory use is bounded by the
+ * buffer size which can be set (in MB) with {@code -Dbuffer=512}. The FPS file
+ * is split into line aligned regions that are parsed in parallel with
+ * {@code -Dthreads=8}, the output does not depend on the number of threads.
+ * With {@code -Dfold=256} a folded copy of the fingerprints is also written
+ * alongside the index (see {@link FoldedIndex}).
  *
  * @author John May
  */
 public class FpsToIdx {
 
+    // size of the buffers used for fingerprints and ids (MB)
+    private static final int BUFFER_SIZE = Integer.getInteger("buffer", 256);
+
+    // number of threads used to parse and write
+    private static final int THREADS = Math.max(1, Integer.getInteger("threads", 1));
+
+    // length the fingerprints are folded to for the folded index, 0 for none
+    private static final int FOLD = Integer.getInteger("fold", 0);
+
+    // maximum size of each mapped region of the FPS file
+    private static final int CHUNK_SIZE = 1 << 30;
+
     public static void main(String[] args) throws IOException {
 
         if (args.length < 1) {
@@ -32,59 +67,471 @@ public class FpsToIdx {
         final String idxPath = args.length < 2 ? fpsPath + ".idx"
                                                : args[1];
 
-        final int len = 1024; // circular fp len
+        build(fpsPath, idxPath, THREADS, BUFFER_SIZE * (1L << 20), FOLD);
+    }
+
+    /**
+     * Build the index (and id files) of an FPS file.
+     *
+     * @param fpsPath  the FPS file
+     * @param idxPath  the index to write
+     * @param nThreads number of threads used to parse and write
+     * @param buffer   size of the buffers used for fingerprints and ids (bytes)
+     * @param fold     length the fingerprints are folded to for the folded index, 0 for none
+     * @throws IOException the FPS file was invalid or the index could not be written
+     */
+    static void build(String fpsPath, String idxPath, int nThreads, long buffer, final int fold) throws IOException {
+
+        // map the whole file for reading, as several regions so they can be parsed in parallel,
+        // the mapping stays valid once the channel is closed
+        final List<MappedByteBuffer> regions;
+        try (FileChannel in = new FileInputStream(fpsPath).getChannel()) {
+            regions = FpsFmt.mapLines(in, chunkSize(in.size(), nThreads));
+        }
+        if (regions.isEmpty())
+            throw new IOException(fpsPath + " is empty");
+
+        // the fingerprint length and type are from the header of the first region
+        final FpsFmt.Header header = FpsFmt.readHeader(regions.get(0));
+        final int           len    = header.numBits;
+        final int           step   = 8 * BinaryFingerprint.words(len);
+
+        if (fold != 0 && !FoldedIndex.canFold(len, fold))
+            throw new IOException("Can not fold " + len + " bit fingerprints to " + fold
+                                  + " bits, the folded length must be a multiple of 64 and less than " + len);
+
+        final List<Chunk> chunks = new ArrayList<Chunk>();
+        for (MappedByteBuffer region : regions)
+            chunks.add(new Chunk(region, len, chunks.isEmpty() ? header.size : 0));
+
+        final ExecutorService pool = nThreads > 1 ? Executors.newFixedThreadPool(nThreads) : null;
+
+        try {
+            // pass 1: count the popcounts and the space needed for the ids of each bin
+            long t0 = System.nanoTime();
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (final Chunk chunk : chunks) {
+                tasks.add(new Callable<Void>() {
+                    @Override public Void call() throws IOException {
+                        chunk.count();
+                        return null;
+                    }
+                });
+            }
+            run(pool, tasks);
+
+            int[]  counts   = new int[len + 2];
+            long[] idBytes  = new long[len + 1];
+            int    nEntries = 0;
+            for (Chunk chunk : chunks) {
+                if (chunk.invalid >= 0)
+                    throw new IOException("Invalid fingerprint on line " + (header.nLines + nEntries + chunk.invalid + 1)
+                                          + " of " + fpsPath + ", expected " + FpsFmt.hexLength(len) + " hex characters ("
+                                          + len + " bits)");
+                for (int pop = 0; pop <= len; pop++) {
+                    counts[pop + 1] += chunk.counts[pop];
+                    idBytes[pop] += chunk.idBytes[pop];
+                }
+                nEntries += chunk.nEntries;
+            }
+            for (int i = 1; i < counts.length; i++)
+                counts[i] += counts[i - 1];
+            long t1 = System.nanoTime();
+
+            System.err.printf("\rCounted %d fingerprints (%d bits) in %.2fs\n", nEntries, len, (t1 - t0) / 1e9);
+
+            // pass 2: write each fingerprint to its bin and spill the ids, each chunk
+            // writes to the slots after those of the chunks before it
+            final File idxFile = new File(idxPath);
+            final File dir     = idxFile.getAbsoluteFile().getParentFile();
+
+            final File foldFile = FoldedIndex.of(idxFile);
+            if (fold == 0 && foldFile.exists() && !foldFile.delete())
+                throw new IOException("Could not remove the old folded index " + foldFile);
+            // the deleted entries of an old index at the same path are not those of this one
+            final File delFile = Tombstones.of(idxFile);
+            if (delFile.exists() && !delFile.delete())
+                throw new IOException("Could not remove the old deleted entries " + delFile);
+
+            try (RandomAccessFile out = new RandomAccessFile(idxFile, "rw");
+                 RandomAccessFile foldOut = fold != 0 ? new RandomAccessFile(foldFile, "rw") : null) {
+
+                out.setLength(0);
+                ByteArrayOutputStream idxHeader = new ByteArrayOutputStream();
+                FingerprintSort.writeHeader(new DataOutputStream(idxHeader), len, header.type, counts);
+                out.write(idxHeader.toByteArray());
+
+                final FileChannel channel = out.getChannel();
+                final long        offset  = idxHeader.size();
+                final long        summary = FingerprintSort.align(offset + (long) nEntries * step);
+                final int         nBlocks = FingerprintSort.summaryBlocks(len);
+                final long        size    = buffer / nThreads;
+
+                final FileChannel foldChannel = foldOut != null ? foldOut.getChannel() : null;
+                if (foldOut != null) {
+                    foldOut.setLength(0);
+                    FoldedIndex.writeHeader(foldOut, len, fold, nEntries);
+                }
+
+                int[] next = Arrays.copyOf(counts, len + 1);
+                tasks.clear();
+                for (final Chunk chunk : chunks) {
+                    final int[] first = next.clone();
+                    for (int pop = 0; pop <= len; pop++)
+                        next[pop] += chunk.counts[pop];
+                    chunk.spill = File.createTempFile("mkidx", ".id", dir);
+                    chunk.spill.deleteOnExit();
+                    tasks.add(new Callable<Void>() {
+                        @Override public Void call() throws IOException {
+                            chunk.scatter(new BinWriter(channel, offset, summary, first, chunk.counts, step, nBlocks,
+                                                         foldChannel, fold / 8, size));
+                            return null;
+                        }
+                    });
+                }
+                run(pool, tasks);
+            }
+            long t2 = System.nanoTime();
+
+            System.err.printf("\rGenerated index in %.2fs\n", (t2 - t1) / 1e9);
+
+            List<File> spills = new ArrayList<File>();
+            for (Chunk chunk : chunks)
+                spills.add(chunk.spill);
+            writeIds(spills, nEntries, idBytes, buffer, new File(idxPath + ".id"), IdTable.of(new File(idxPath)));
+            for (File spill : spills) {
+                if (!spill.delete())
+                    System.err.println("Could not remove temporary file " + spill);
+            }
+
+            long t3 = System.nanoTime();
+            System.err.printf("\rWrote id file in %.2fs\n", (t3 - t2) / 1e9);
+        } finally {
+            if (pool != null)
+                pool.shutdown();
+        }
+    }
+
+    /**
+     * A line aligned region of the FPS file, the popcounts and id sizes are counted on
+     * the first pass and the fingerprints written out on the second.
+     */
+    static final class Chunk {
+
+        private final ByteBuffer buffer;
+        private final int        len;
+        private final int        start;
+        private final long[]     words;
+
+        final int[]  counts;
+        final long[] idBytes;
+        int          nEntries;
+        File         spill;
+
+        // the entry (line in this chunk) with an invalid fingerprint, -1 if none
+        int          invalid = -1;
+
+        /**
+         * @param buffer the region
+         * @param len    fingerprint length (bits)
+         * @param start  where the fingerprints start, after the header in the first region
+         */
+        Chunk(ByteBuffer buffer, int len, int start) {
+            this.buffer = buffer;
+            this.len = len;
+            this.start = start;
+            this.words = new long[BinaryFingerprint.words(len)];
+            this.counts = new int[len + 1];
+            this.idBytes = new long[len + 1];
+        }
+
+        void count() {
+            buffer.position(start);
+            while (buffer.hasRemaining()) {
+                int sep;
+                if (!FpsFmt.readHex(buffer, len, words) || (sep = FpsFmt.readSeparator(buffer)) < 0) {
+                    invalid = nEntries;
+                    return;
+                }
+                int pop = cardinality(words);
+                counts[pop]++;
+                idBytes[pop] += (sep > 0 ? skipToEnd(buffer) : 0) + 1;
+                nEntries++;
+            }
+        }
+
+        void scatter(BinWriter writer) throws IOException {
+            try (DataOutputStream ids = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spill), 1 << 16))) {
+                byte[] id = new byte[256];
+                buffer.position(start);
+                while (buffer.hasRemaining()) {
+                    FpsFmt.readHex(buffer, len, words); // hex bit set
+                    boolean hasId = FpsFmt.readSeparator(buffer) > 0;
+                    int pop = cardinality(words);
+                    writer.add(pop, words);
 
-        final long[] words = new long[len / 64];
+                    int idLen = hasId ? skipToEnd(buffer.duplicate()) : 0;
+                    if (idLen > id.length)
+                        id = new byte[Integer.highestOneBit(idLen) << 1];
+                    buffer.get(id, 0, idLen);
+                    if (hasId)
+                        skipToEnd(buffer); // line ending
+                    ids.writeInt(pop);
+                    ids.writeInt(idLen);
+                    ids.write(id, 0, idLen);
+                }
+                writer.flush();
+            }
+        }
+    }
 
-        // todo avoid storing all fp in mem
-        final List<BinaryFingerprint> fps = new ArrayList<BinaryFingerprint>();
-        final List<String> ids = new ArrayList<String>();
+    /**
+     * Run the tasks on the pool, or on this thread if there is no pool.
+     */
+    static void run(ExecutorService pool, List<Callable<Void>> tasks) throws IOException {
+        try {
+            if (pool == null) {
+                for (Callable<Void> task : tasks)
+                    task.call();
+                return;
+            }
+            for (Future<Void> future : pool.invokeAll(tasks))
+                future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Size of the regions the FPS file is split into, a few per thread so the
+     * work is spread evenly.
+     */
+    static int chunkSize(long fileSize, int nThreads) {
+        if (nThreads == 1)
+            return CHUNK_SIZE;
+        return (int) Math.max(1 << 20, Math.min(CHUNK_SIZE, fileSize / (4L * nThreads)));
+    }
 
-        FileChannel in = new FileInputStream(fpsPath).getChannel();
-        // map the whole file for reading
-        ByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, new File(fpsPath).length());
+    /**
+     * Write the id file and id table in index order from the spilled (popcount, id)
+     * records. The entries of a bin are in input order so the bins are filled in
+     * groups that fit in the buffer, reading the spilled records once for each group.
+     *
+     * @param spills   the spilled records, in input order
+     * @param nEntries number of records
+     * @param idBytes  the space needed by the ids of each bin
+     * @param size     size of the buffer (bytes)
+     * @param dest     the id file to write
+     * @param table    the (binary) id table to write
+     * @throws IOException the ids could not be read or written
+     * @see IdTable
+     */
+    static void writeIds(List<File> spills, int nEntries, long[] idBytes, long size, File dest, File table) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(dest), 1 << 16);
+             IdTable.Writer ids = new IdTable.Writer(table, nEntries)) {
+            int idx = 0;
+            int lo  = 0;
+            while (lo < idBytes.length) {
 
-        StringBuilder idStrBldr = new StringBuilder();
+                // the next group of bins, at least one bin even if it does not fit
+                int  hi    = lo;
+                long total = 0;
+                while (hi < idBytes.length && (hi == lo || total + idBytes[hi] <= size))
+                    total += idBytes[hi++];
 
-        long t0 = System.nanoTime();
-        while (buffer.hasRemaining()) {
-            // reset
-            idStrBldr.setLength(0);
+                if (total == 0) {
+                    lo = hi;
+                    continue;
+                }
+                if (total > Integer.MAX_VALUE)
+                    throw new IOException("Ids of bin " + lo + " do not fit in memory: " + total + " bytes");
 
-            FpsFmt.readHex(buffer, len, words); // hex bit set
-            buffer.get(); // tab
-            readToEnd(buffer, idStrBldr); // id
-            
-            fps.add(BinaryFingerprint.valueOf(words, len));
-            ids.add(idStrBldr.toString());
+                byte[] blob   = new byte[(int) total];
+                int[]  cursor = new int[hi - lo];
+                for (int bin = lo + 1; bin < hi; bin++)
+                    cursor[bin - lo] = cursor[bin - lo - 1] + (int) idBytes[bin - 1];
+
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new SequenceInputStream(open(spills)), 1 << 16))) {
+                    for (int i = 0; i < nEntries; i++) {
+                        int pop = in.readInt();
+                        int len = in.readInt();
+                        if (pop >= lo && pop < hi) {
+                            int pos = cursor[pop - lo];
+                            in.readFully(blob, pos, len);
+                            blob[pos + len] = '\n';
+                            cursor[pop - lo] = pos + len + 1;
+                        }
+                        else {
+                            in.skipBytes(len);
+                        }
+                    }
+                }
+
+                int start = 0;
+                for (int i = 0; i < blob.length; i++) {
+                    if (blob[i] == '\n') {
+                        ids.add(blob, start, i - start);
+                        out.write(Integer.toString(idx++).getBytes(StandardCharsets.US_ASCII));
+                        out.write('\t');
+                        out.write(blob, start, i + 1 - start);
+                        start = i + 1;
+                    }
+                }
+
+                lo = hi;
+            }
         }
-        long t1 = System.nanoTime();
-        
-        System.err.printf("\rRead %d fingerprints in %.2fs\n", fps.size(), (t1 - t0) / 1e9);
-        
-        int[] indexOrder = FingerprintSort.index(fps, 1024, new File(idxPath));
-        long t2 = System.nanoTime();
-
-        System.err.printf("\rGenerated index in %.2fs\n", (t2 - t1) / 1e9);
-
-        BufferedWriter bw = new BufferedWriter(new FileWriter(idxPath + ".id"));
-        for (int i = 0; i < indexOrder.length; i++) {
-            bw.write(Integer.toString(i));
-            bw.write('\t');
-            bw.write(ids.get(indexOrder[i]));
-            bw.newLine();
-        }                        
-        bw.close();
-        
-        long t3 = System.nanoTime();
-        System.err.printf("\rWrote id file in %.2fs\n", (t3- t2) / 1e9);
     }
 
-    static void readToEnd(ByteBuffer buffer, StringBuilder sb) {
-        while (buffer.hasRemaining()) {
-            char c = (char) buffer.get();
-            if (c == '\n') return;
-            sb.append(c);
+    private static Enumeration<InputStream> open(final List<File> files) {
+        final Iterator<File> it = files.iterator();
+        return new Enumeration<InputStream>() {
+            @Override public boolean hasMoreElements() {
+                return it.hasNext();
+            }
+
+            @Override public InputStream nextElement() {
+                try {
+                    return new FileInputStream(it.next());
+                } catch (FileNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Buffers the fingerprints (and their summaries and folded fingerprints) for each bin and
+     * writes them to consecutive slots of the bin when full. The buffers share the total size
+     * provided.
+     */
+    static final class BinWriter {
+
+        private final FileChannel  channel;
+        private final ByteBuffer[] buffers;
+        private final ByteBuffer[] summaries;
+        private final long[]       position;
+        private final long[]       summaryPosition;
+        private final byte[]       summary;
+
+        // the folded index, null if there is none
+        private final FileChannel  foldChannel;
+        private final ByteBuffer[] folds;
+        private final long[]       foldPosition;
+        private final long[]       fold;
+
+        /**
+         * @param channel     the index file
+         * @param offset      start of the fingerprints in the file
+         * @param summary     start of the summaries in the file
+         * @param first       the first slot to write in each bin
+         * @param counts      the number of fingerprints that will be written to each bin
+         * @param step        size of a fingerprint (bytes)
+         * @param nBlocks     size of a summary (bytes)
+         * @param foldChannel the folded index, may be null
+         * @param foldStep    size of a folded fingerprint (bytes)
+         * @param size        total size of the buffers (bytes)
+         */
+        BinWriter(FileChannel channel, long offset, long summary, int[] first, int[] counts, int step, int nBlocks,
+                  FileChannel foldChannel, int foldStep, long size) {
+            this.channel = channel;
+            this.summary = new byte[nBlocks];
+            this.foldChannel = foldChannel;
+            if (foldChannel == null)
+                foldStep = 0;
+            this.fold = new long[foldStep / 8];
+
+            int nBins = counts.length;
+            int nUsed = 0;
+            for (int bin = 0; bin < nBins; bin++)
+                if (counts[bin] > 0)
+                    nUsed++;
+
+            long binSize = Math.max(1, size / (Math.max(1, nUsed) * (long) (step + nBlocks + foldStep)));
+
+            this.buffers = new ByteBuffer[nBins];
+            this.summaries = new ByteBuffer[nBins];
+            this.position = new long[nBins];
+            this.summaryPosition = new long[nBins];
+            this.folds = new ByteBuffer[nBins];
+            this.foldPosition = new long[nBins];
+            for (int bin = 0; bin < nBins; bin++) {
+                position[bin] = offset + (long) first[bin] * step;
+                summaryPosition[bin] = summary + (long) first[bin] * nBlocks;
+                foldPosition[bin] = FoldedIndex.HEADER_SIZE + (long) first[bin] * foldStep;
+                if (counts[bin] > 0) {
+                    int n = (int) Math.min(counts[bin], binSize);
+                    buffers[bin] = ByteBuffer.allocate(step * n);
+                    summaries[bin] = ByteBuffer.allocate(nBlocks * n);
+                    if (foldChannel != null)
+                        folds[bin] = ByteBuffer.allocate(foldStep * n);
+                }
+            }
+        }
+
+        void add(int pop, long[] words) throws IOException {
+            ByteBuffer buffer = buffers[pop];
+            for (long word : words)
+                buffer.putLong(word);
+            FingerprintSort.summarise(words, summary.length, summary, 0);
+            summaries[pop].put(summary);
+            if (foldChannel != null) {
+                BinaryFingerprint.fold(words, fold);
+                for (long word : fold)
+                    folds[pop].putLong(word);
+            }
+            if (!buffer.hasRemaining())
+                flush(pop);
+        }
+
+        void flush(int pop) throws IOException {
+            position[pop] = write(channel, buffers[pop], position[pop]);
+            summaryPosition[pop] = write(channel, summaries[pop], summaryPosition[pop]);
+            if (foldChannel != null)
+                foldPosition[pop] = write(foldChannel, folds[pop], foldPosition[pop]);
         }
+
+        private static long write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+            buffer.clear();
+            return position;
+        }
+
+        void flush() throws IOException {
+            for (int bin = 0; bin < buffers.length; bin++)
+                if (buffers[bin] != null)
+                    flush(bin);
+        }
+    }
+
+    static int cardinality(long[] words) {
+        int sum = 0;
+        for (long word : words)
+            sum += Long.bitCount(word);
+        return sum;
+    }
+
+    /**
+     * Move the buffer past the end of the current line.
+     *
+     * @return number of characters before the newline
+     */
+    static int skipToEnd(ByteBuffer buffer) {
+        int start = buffer.position();
+        int end   = start;
+        while (buffer.hasRemaining() && buffer.get() != '\n')
+            end++;
+        // not including the '\r' of a '\r\n' line ending
+        if (end > start && buffer.get(end - 1) == '\r')
+            end--;
+        return end - start;
     }
 }
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *
+ * Contact: cdk-devel@lists.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+package org.openscience.cdk.nfp;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes search hits without creating any objects for each hit. The hits are written to a
+ * byte buffer that is passed to the output stream when full.
+ * <ul>
+ *     <li>{@link Format#TSV} - a line for each hit, the query, score and id separated by tabs.
+ *     The score has 4 decimal places and the id is the original id if there is an id table.</li>
+ *     <li>{@link Format#BIN} - a fixed width (16 byte, big-endian) record for each hit, the
+ *     query number (int), entry (int) and score (double).</li>
+ * </ul>
+ * The emitter of a query ({@link #query()}) can be reused for the next query. An error writing
+ * the output is reported on the next {@link #flush()}.
+ *
+ * @author John May
+ */
+final class HitWriter implements Flushable, Closeable {
+
+    enum Format {
+        TSV, BIN
+    }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // longest formatted number, e.g. an int or the fallback score format
+    private static final int MAX_NUMBER = 32;
+
+    private final OutputStream out;
+    private final Format       format;
+    private final EntryIds     ids;
+    private final byte[]       buf;
+    private int                pos;
+    private IOException        error;
+
+    /**
+     * @param out    the output
+     * @param format the output format
+     * @param ids    the original ids to write (TSV), may be null
+     */
+    HitWriter(OutputStream out, Format format, EntryIds ids) {
+        this.out = out;
+        this.format = format;
+        this.ids = ids;
+        this.buf = new byte[BUFFER_SIZE + (ids != null ? ids.maxLength() : 0)];
+    }
+
+    /**
+     * The emitter for the hits of a query.
+     */
+    final class Query implements ResultPairEmitter {
+
+        private int    n;
+        private byte[] name = new byte[0];
+
+        /**
+         * Set the query the hits are for.
+         *
+         * @param n    the query number (BIN)
+         * @param name the query, e.g. SMILES (TSV)
+         * @return this emitter
+         */
+        Query set(int n, String name) {
+            this.n = n;
+            this.name = format == Format.TSV ? name.getBytes(StandardCharsets.UTF_8) : this.name;
+            return this;
+        }
+
+        @Override public void emit(int id, double score) {
+            if (format == Format.BIN)
+                writeRecord(n, id, score);
+            else
+                writeLine(name, id, score);
+        }
+    }
+
+    Query query() {
+        return new Query();
+    }
+
+    private void writeRecord(int n, int id, double score) {
+        reserve(16);
+        putInt(n);
+        putInt(id);
+        long bits = Double.doubleToLongBits(score);
+        putInt((int) (bits >>> 32));
+        putInt((int) bits);
+    }
+
+    private void writeLine(byte[] name, int id, double score) {
+        if (!reserve(name.length + 2 * MAX_NUMBER))
+            return;
+        System.arraycopy(name, 0, buf, pos, name.length);
+        pos += name.length;
+        buf[pos++] = '\t';
+        putScore(score);
+        buf[pos++] = '\t';
+        if (ids != null)
+            pos += ids.copy(id, buf, pos);
+        else
+            putDecimal(id);
+        buf[pos++] = '\n';
+    }
+
+    /**
+     * Make space for 'n' more bytes (plus the longest id), flushing if needed.
+     *
+     * @return the space is available, false if it is not (an oversized query)
+     */
+    private boolean reserve(int n) {
+        if (pos + n > BUFFER_SIZE) {
+            drain();
+            if (n > BUFFER_SIZE) {
+                error = new IOException("Hit of " + n + " bytes is too large to write");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void putInt(int x) {
+        buf[pos++] = (byte) (x >>> 24);
+        buf[pos++] = (byte) (x >>> 16);
+        buf[pos++] = (byte) (x >>> 8);
+        buf[pos++] = (byte) x;
+    }
+
+    // write a decimal, the digits are written from the end
+    private void putDecimal(long x) {
+        if (x < 0) {
+            buf[pos++] = '-';
+            x = -x;
+        }
+        int end = pos + digits(x);
+        int i   = end;
+        do {
+            buf[--i] = (byte) ('0' + (x % 10));
+            x /= 10;
+        } while (x != 0);
+        pos = end;
+    }
+
+    private static int digits(long x) {
+        int n = 1;
+        while ((x /= 10) != 0)
+            n++;
+        return n;
+    }
+
+    // fixed point, 4 decimal places, falls back to Double.toString for odd values
+    private void putScore(double score) {
+        if (!(score > -1e9 && score < 1e9)) {
+            byte[] str = Double.toString(score).getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(str, 0, buf, pos, str.length);
+            pos += str.length;
+            return;
+        }
+        long fixed = Math.round(score * 10000);
+        if (fixed < 0) {
+            buf[pos++] = '-';
+            fixed = -fixed;
+        }
+        putDecimal(fixed / 10000);
+        buf[pos++] = '.';
+        int frac = (int) (fixed % 10000);
+        buf[pos++] = (byte) ('0' + frac / 1000);
+        buf[pos++] = (byte) ('0' + frac / 100 % 10);
+        buf[pos++] = (byte) ('0' + frac / 10 % 10);
+        buf[pos++] = (byte) ('0' + frac % 10);
+    }
+
+    // pass the buffer to the output, errors are kept until the next flush
+    private void drain() {
+        if (pos == 0)
+            return;
+        try {
+            if (error == null)
+                out.write(buf, 0, pos);
+        } catch (IOException e) {
+            error = e;
+        }
+        pos = 0;
+    }
+
+    @Override public void flush() throws IOException {
+        drain();
+        if (error != null) {
+            IOException e = error;
+            error = null;
+            throw e;
+        }
+        out.flush();
+    }
+
+    @Override public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+}
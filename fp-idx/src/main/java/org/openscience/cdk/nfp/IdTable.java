@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *
+ * Contact: cdk-devel@lists.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+package org.openscience.cdk.nfp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+
+/**
+ * A memory mapped table of the original ids of the index entries, an id is found in constant
+ * time without loading the ids on to the heap. The file (big-endian) has a 16 byte header: the
+ * magic number, version, number of ids and the length of the longest id (bytes). Then there are
+ * n+1 offsets (longs) into the blob of UTF-8 ids that follows, the id of entry 'i' is the bytes
+ * from offset[i] to offset[i+1].
+ *
+ * @author John May
+ */
+final class IdTable implements Closeable, EntryIds {
+
+    static final int MAGIC   = 0x4e465044; // 'NFPD'
+    static final int VERSION = 1;
+
+    private static final int  HEADER_SIZE  = 16;
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final FileChannel  channel;
+    private final ByteBuffer[] segments;
+    private final int          nIds;
+    private final int          maxLength;
+    private final long         blob;
+    private final long         segmentSize;
+
+    private IdTable(FileChannel channel, int nIds, int maxLength, long segmentSize) throws IOException {
+        this.channel = channel;
+        this.nIds = nIds;
+        this.maxLength = maxLength;
+        this.blob = HEADER_SIZE + 8L * (nIds + 1);
+        this.segmentSize = segmentSize;
+
+        // segments overlap by the longest record so every record is within one segment
+        long size    = channel.size();
+        int  overlap = Math.max(8, maxLength);
+        int  n       = (int) ((size + segmentSize - 1) / segmentSize);
+        segments = new ByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            long start = i * segmentSize;
+            segments[i] = channel.map(READ_ONLY, start, Math.min(size - start, segmentSize + overlap));
+        }
+    }
+
+    /**
+     * The original id of an index entry.
+     *
+     * @param i the index entry
+     * @return the id
+     */
+    String get(int i) {
+        byte[] bytes = new byte[length(i)];
+        copy(i, bytes, 0);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copy the (UTF-8) id of an index entry, there must be space for {@link #maxLength()} bytes.
+     *
+     * @param i    the index entry
+     * @param dest where to copy the id
+     * @param off  the position in 'dest' to copy to
+     * @return the length of the id (bytes)
+     */
+    @Override public int copy(int i, byte[] dest, int off) {
+        int length = length(i);
+        segment(blob + readLong(HEADER_SIZE + 8L * i)).get(dest, off, length);
+        return length;
+    }
+
+    private int length(int i) {
+        if (i < 0 || i >= nIds)
+            throw new IndexOutOfBoundsException("No id for entry " + i);
+        long pos = HEADER_SIZE + 8L * i;
+        return (int) (readLong(pos + 8) - readLong(pos));
+    }
+
+    int size() {
+        return nIds;
+    }
+
+    /**
+     * Length of the longest id (bytes).
+     *
+     * @return the length
+     */
+    @Override public int maxLength() {
+        return maxLength;
+    }
+
+    private long readLong(long pos) {
+        return segments[(int) (pos / segmentSize)].getLong((int) (pos % segmentSize));
+    }
+
+    // a view positioned at 'pos', a view is used so the table can be read from several threads
+    private ByteBuffer segment(long pos) {
+        ByteBuffer buffer = segments[(int) (pos / segmentSize)].duplicate();
+        buffer.position((int) (pos % segmentSize));
+        return buffer;
+    }
+
+    /**
+     * Close the table and release the mapped memory, the table must no longer be in use.
+     */
+    @Override public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            for (ByteBuffer segment : segments)
+                Unmapper.unmap(segment);
+        }
+    }
+
+    /**
+     * Load an id table.
+     *
+     * @param f the file
+     * @return the id table
+     * @throws IOException the file could not be read or is not an id table
+     */
+    static IdTable load(File f) throws IOException {
+        return load(f, SEGMENT_SIZE);
+    }
+
+    /**
+     * Load an id table mapped in segments of the given size, small segments let a test
+     * check the ids that straddle a segment boundary.
+     *
+     * @param f           the file
+     * @param segmentSize size of each mapped segment (bytes), the segments overlap by the
+     *                    longest id
+     * @return the id table
+     * @throws IOException the file could not be read or is not an id table
+     */
+    static IdTable load(File f, long segmentSize) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC) {
+            raf.close();
+            throw new IOException(f + " is not an id table");
+        }
+        int version = raf.readInt();
+        if (version > VERSION) {
+            raf.close();
+            throw new IOException("Unsupported id table version " + version + " in " + f);
+        }
+        int nIds      = raf.readInt();
+        int maxLength = raf.readInt();
+        return new IdTable(raf.getChannel(), nIds, maxLength, segmentSize);
+    }
+
+    /**
+     * The id table stored alongside an index, e.g. 'chembl.idx.ids' for 'chembl.idx'.
+     *
+     * @param idx the index file
+     * @return the id table file
+     */
+    static File of(File idx) {
+        return new File(idx.getPath() + ".ids");
+    }
+
+    /**
+     * Writes an id table, the ids must be added in index order.
+     */
+    static final class Writer implements Closeable {
+
+        private final RandomAccessFile raf;
+        private final FileChannel      channel;
+        private final ByteBuffer       offsets = ByteBuffer.allocate(1 << 16);
+        private final ByteBuffer       ids     = ByteBuffer.allocate(1 << 16);
+        private final int              nIds;
+
+        // file positions of the next offset and id bytes, the blob size now and after the previous id
+        private long offsetPos, idPos, offset, previous;
+        private int  count, maxLength;
+
+        /**
+         * @param f    the file to write
+         * @param nIds number of ids that will be added
+         */
+        Writer(File f, int nIds) throws IOException {
+            this.raf = new RandomAccessFile(f, "rw");
+            this.raf.setLength(0);
+            this.channel = raf.getChannel();
+            this.nIds = nIds;
+            this.offsetPos = HEADER_SIZE;
+            this.idPos = HEADER_SIZE + 8L * (nIds + 1);
+            offsets.putLong(0);
+        }
+
+        /**
+         * Add the next id.
+         *
+         * @param bytes UTF-8 bytes
+         * @param off   start of the id in 'bytes'
+         * @param len   length of the id (bytes)
+         */
+        void add(byte[] bytes, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, ids.remaining());
+                ids.put(bytes, off, n);
+                off += n;
+                len -= n;
+                offset += n;
+                if (!ids.hasRemaining())
+                    idPos = write(ids, idPos);
+            }
+            maxLength = Math.max(maxLength, (int) (offset - previous));
+            previous = offset;
+            offsets.putLong(offset);
+            if (!offsets.hasRemaining())
+                offsetPos = write(offsets, offsetPos);
+            count++;
+        }
+
+        private long write(ByteBuffer buffer, long position) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+            buffer.clear();
+            return position;
+        }
+
+        @Override public void close() throws IOException {
+            try {
+                if (count != nIds)
+                    throw new IOException("Expected " + nIds + " ids but " + count + " were added");
+                write(offsets, offsetPos);
+                write(ids, idPos);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putInt(nIds).putInt(maxLength);
+                write(header, 0);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Update a {@link SegmentedIndex}, new fingerprints are indexed with mkidx and added as a
+ * segment, entries are deleted by id (one per line in a file) and the segments compacted
+ * into one. Without a command the segments are listed.
+ *
+ * <pre>
+ * ./idxseg chembl.seg add chembl_19.idx    (creates chembl.seg)
+ * ./idxseg chembl.seg add week_42.idx
+ * ./idxseg chembl.seg delete withdrawn.txt
+ * ./idxseg chembl.seg compact
+ * ./idxseg chembl.seg
+ * </pre>
+ *
+ * @author John May
+ */
+public final class IdxSegments {
+
+    public static void main(String[] args) throws IOException {
+
+        final String cmd   = args.length > 1 ? args[1] : "list";
+        final int    nArgs = cmd.equals("add") || cmd.equals("delete") ? 3 : 2;
+
+        if (args.length == 0 || args.length > 1 && args.length != nArgs) {
+            System.err.println("usage: ./idxseg {manifest} [add {input.idx} | delete {ids.txt} | compact]");
+            return;
+        }
+
+        final File manifest = new File(args[0]);
+
+        long t0 = System.nanoTime();
+
+        if (cmd.equals("add") && !manifest.exists()) {
+            SegmentedIndex.create(manifest, new File(args[2])).close();
+            System.err.printf("Created %s from %s in %.2fs\n", manifest, args[2], (System.nanoTime() - t0) / 1e9);
+            return;
+        }
+
+        try (SegmentedIndex idx = SegmentedIndex.load(manifest)) {
+            switch (cmd) {
+                case "add":
+                    idx.add(new File(args[2]));
+                    System.err.printf("Added %s in %.2fs\n", args[2], (System.nanoTime() - t0) / 1e9);
+                    break;
+                case "delete":
+                    int n = idx.delete(readIds(new File(args[2])));
+                    System.err.printf("Deleted %d entries in %.2fs\n", n, (System.nanoTime() - t0) / 1e9);
+                    break;
+                case "compact":
+                    if (idx.compact())
+                        System.err.printf("Compacted %s in %.2fs\n", manifest, (System.nanoTime() - t0) / 1e9);
+                    else
+                        System.err.println("Nothing to compact");
+                    break;
+                case "list":
+                    break;
+                default:
+                    System.err.println("Unknown command " + cmd + ", expected add, delete or compact");
+                    return;
+            }
+            try (SegmentedIndex.View view = idx.view()) {
+                list(view);
+            }
+        }
+    }
+
+    private static void list(SegmentedIndex.View view) {
+        for (int s = 0; s < view.segments.length; s++)
+            System.out.println(view.names[s] + "\t" + view.segments[s].size() + "\t" + view.segments[s].nDeleted());
+        System.err.println(view.size() + " entries (" + view.nDeleted() + " deleted) in " + view.segments.length
+                           + " segments");
+    }
+
+    private static Set<String> readIds(File f) throws IOException {
+        Set<String> ids = new HashSet<String>();
+        try (BufferedReader rdr = new BufferedReader(new FileReader(f))) {
+            String line;
+            while ((line = rdr.readLine()) != null) {
+                if (!line.trim().isEmpty())
+                    ids.add(line.trim());
+            }
+        }
+        return ids;
+    }
+}
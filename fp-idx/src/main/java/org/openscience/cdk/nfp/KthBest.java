@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The k-th best score of a top-k search shared between the workers (or indexes) taking part.
+ * Each worker publishes the k-th best score of its own heap once full, the maximum of these is a
+ * lower bound on the final k-th best score so any worker can skip what scores less. Ties are
+ * broken by entry id (see {@link MinBinaryHeap}), an entry scoring the same as the k-th best may
+ * still displace it so only what scores strictly less is skipped, see {@link #admits(double)}.
+ * The score only increases and may be read and published from any thread.
+ *
+ * @author John May
+ */
+final class KthBest {
+
+    private final AtomicLong bits = new AtomicLong(Double.doubleToLongBits(Double.NEGATIVE_INFINITY));
+
+    /**
+     * The highest k-th best score published, negative infinity until a heap is full.
+     *
+     * @return the score
+     */
+    double get() {
+        return Double.longBitsToDouble(bits.get());
+    }
+
+    /**
+     * Can an entry with the given score (or bound on the score) still be one of the k best. A
+     * score equal to the k-th best is admitted, it may have a lower entry id.
+     *
+     * @param score the score or bound
+     * @return the entry can not be skipped
+     */
+    boolean admits(double score) {
+        return score >= get();
+    }
+
+    /**
+     * Publish the k-th best score of a heap, it is kept if higher than the current score.
+     *
+     * @param score the score
+     */
+    void publish(double score) {
+        long cur;
+        while (score > Double.longBitsToDouble(cur = bits.get())) {
+            if (bits.compareAndSet(cur, Double.doubleToLongBits(score)))
+                return;
+        }
+    }
+}
@@ -28,7 +28,32 @@ package org.openscience.cdk.nfp;
  * @author John May
  */
 interface Measure {
+
+    /**
+     * Compute the measure from the number of bits set only in a, only in b, in both and in
+     * neither.
+     */
     public double compute(int a, int b, int both, int neither);
-    public double bound(int q, int t);
 
+    /**
+     * An upper bound on the measure between a query with popcount 'q' and a target with
+     * popcount 't', both of length 'n'.
+     *
+     * @param q popcount of the query
+     * @param t popcount of the target
+     * @param n fingerprint length (bits)
+     * @return the bound
+     */
+    public double bound(int q, int t, int n);
+
+    /**
+     * The popcounts of the targets whose {@link #bound(int, int, int)} reaches the threshold,
+     * those outside the range can not be similar to the query.
+     *
+     * @param q         popcount of the query
+     * @param threshold the threshold
+     * @param n         fingerprint length (bits)
+     * @return the lowest and highest admissible popcount (inclusive), lo > hi if none are
+     */
+    public int[] range(int q, double threshold, int n);
 }
@@ -24,20 +24,32 @@
 
 package org.openscience.cdk.nfp;
 
-import java.util.AbstractMap;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Map;
 
+/**
+ * A bounded min-heap of (key, value) pairs that keeps the 'k' highest values seen. The heap is
+ * 1-based, 'size' is one more than the number of entries. Once full the root is the k-th best
+ * value, {@link #threshold()} publishes it so other threads can read it while the heap is
+ * filled, all other methods must only be used by one thread.
+ * <br>
+ * Entries with the same value are ordered by key, the lower key is better. The heap then keeps
+ * the same 'k' entries whatever order they are added in, a search split between threads (or
+ * shards) and merged finds the same hits in the same order as a serial search.
+ *
+ * @author John May
+ */
 final class MinBinaryHeap {
 
     int[]    key;
     double[] val;
     int      size;
 
+    // the k-th best value once full, written when the root changes
+    private volatile double threshold = Double.NEGATIVE_INFINITY;
+
     MinBinaryHeap(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("A heap must hold at least one entry: " + size);
         this.key = new int[size + 1];
         this.val = new double[size + 1];
         this.size = 1;
@@ -58,11 +70,14 @@ final class MinBinaryHeap {
     void add(int x, double c) {
         if (size < key.length) {
             insert(x, c);
+            if (size == key.length)
+                threshold = val[1];
         }
-        else if (c > val[1]) {
+        else if (c > val[1] || c == val[1] && x < key[1]) {
             key[1] = x;
             val[1] = c;
             heapify(1);
+            threshold = val[1];
         }
     }
 
@@ -70,7 +85,7 @@ final class MinBinaryHeap {
         size = size + 1;
         int i = size - 1;
 
-        while (i > 1 && val[parent(i)] > c) {
+        while (i > 1 && worse(x, c, key[parent(i)], val[parent(i)])) {
             key[i] = key[parent(i)];
             val[i] = val[parent(i)];
             i = parent(i);
@@ -79,6 +94,13 @@ final class MinBinaryHeap {
         val[i] = c;
     }
 
+    /**
+     * Is the entry (x, c) worse than (y, d), a lower value or the same value and a higher key.
+     */
+    private static boolean worse(int x, double c, int y, double d) {
+        return c < d || c == d && x > y;
+    }
+
     void exch(int i, int j) {
         int tmpId = key[i];
         double tmpSim = val[i];
@@ -95,56 +117,102 @@ final class MinBinaryHeap {
         return val[1];
     }
 
+    /**
+     * The heap holds 'k' entries, a value must be higher than {@link #min()} (or the same with a
+     * lower key) to be added.
+     */
+    boolean full() {
+        return size == key.length;
+    }
+
+    /**
+     * The k-th best value once the heap is full, otherwise negative infinity. The value is
+     * published so it may be read from any thread while another thread adds to the heap, it
+     * only increases while entries are added. An entry with this value and a lower key can
+     * still be added so a search must only skip what scores strictly less.
+     *
+     * @return the lowest value that could still be displaced
+     */
+    double threshold() {
+        return threshold;
+    }
+
     int deleteMin() {
         int min = key[1];
-        key[1] = key[--size];
+        --size;
+        key[1] = key[size];
+        val[1] = val[size];
         heapify(1);
+        threshold = Double.NEGATIVE_INFINITY;
         return min;
     }
 
-    void heapify(int i) {
-        int l = left(i);
-        int r = right(i);
-        int lo = -1;
+    /**
+     * Add the entries of other heaps, this heap then holds the 'k' best of all of them. An
+     * entry is only added if it beats the current minimum, after the first heap most are not.
+     *
+     * @param heaps the heaps to merge in
+     */
+    void addAll(Iterable<MinBinaryHeap> heaps) {
+        for (MinBinaryHeap heap : heaps) {
+            for (int i = 1; i < heap.size; i++)
+                add(heap.key[i], heap.val[i]);
+        }
+    }
 
-        if (l < size && val[l] < val[i])
-            lo = l;
-        else
-            lo = i;
+    /**
+     * Heap-sort the entries in place. Afterwards key[1..n] and val[1..n] hold the entries best
+     * (highest value, then lowest key) first and the heap is empty, no objects are created.
+     *
+     * @return the number of entries, n
+     */
+    int sort() {
+        int n = size - 1;
+        // repeatedly swap the minimum to the end of the shrinking heap
+        while (size > 2) {
+            exch(1, --size);
+            heapify(1);
+        }
+        size = 1;
+        threshold = Double.NEGATIVE_INFINITY;
+        return n;
+    }
 
-        if (r < size && val[r] < val[lo])
-            lo = r;
+    /**
+     * Remove all entries from the heap into the provided arrays, best (highest value) first.
+     * The arrays must have space for {@code size - 1} entries, no other objects are created.
+     *
+     * @param keys   receives the keys
+     * @param values receives the values
+     * @return the number of entries
+     */
+    int drain(int[] keys, double[] values) {
+        int n = sort();
+        System.arraycopy(key, 1, keys, 0, n);
+        System.arraycopy(val, 1, values, 0, n);
+        return n;
+    }
 
-        if (lo == i)
-            return;
+    void heapify(int i) {
+        while (true) {
+            int l  = left(i);
+            int r  = right(i);
+            int lo = i;
 
-        exch(i, lo);
-        heapify(lo);
-    }
+            if (l < size && worse(key[l], val[l], key[lo], val[lo]))
+                lo = l;
+            if (r < size && worse(key[r], val[r], key[lo], val[lo]))
+                lo = r;
 
-    Iterable<Map.Entry<Integer,Double>> pairs() {
-        ArrayList<Map.Entry<Integer,Double>> entries = new ArrayList<>(key.length-1);
-        for (int i = 1; i < size; i++)
-            entries.add(new AbstractMap.SimpleImmutableEntry<>(key[i], val[i]));
-        // FIXME can do ordering better with binary heap
-        Collections.sort(entries, new Comparator<Map.Entry<Integer, Double>>() {
-            @Override
-            public int compare(Map.Entry<Integer, Double> a, Map.Entry<Integer, Double> b)
-            {
-                return Double.compare(b.getValue(), a.getValue());
-            }
-        });
-        return entries;
-    }
+            if (lo == i)
+                return;
 
-    Iterable<Integer> keys() {
-        ArrayList<Integer> keys = new ArrayList<Integer>(key.length-1);
-        for (int i = 1; i < size; i++)
-            keys.add(key[i]);
-        return keys;
+            exch(i, lo);
+            i = lo;
+        }
     }
 
     @Override public String toString() {
         return Arrays.toString(key) + "\n" + Arrays.toString(val);
     }
-}
\ No newline at end of file
+}
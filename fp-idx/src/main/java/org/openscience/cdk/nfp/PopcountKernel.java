@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+package org.openscience.cdk.nfp;
+
+/**
+ * Kernels that count the bits a query has in common with each fingerprint in a
+ * block. The block holds the fingerprint words back to back and is filled by a
+ * bulk copy from the index so the loops run over plain arrays, which HotSpot
+ * can unroll and, where the CPU has a vector popcount, vectorise. The kernel
+ * is selected at runtime, {@code -Dkernel=unrolled} selects the unrolled kernel
+ * when the fingerprint width allows, otherwise the scalar kernel is used.
+ *
+ * @author John May
+ */
+enum PopcountKernel {
+
+    /** One word at a time, any fingerprint width. */
+    Scalar {
+        @Override void intersect(long[] query, long[] block, int n, int[] both) {
+            final int nWords = query.length;
+            for (int i = 0, w = 0; i < n; i++) {
+                int count = 0;
+                for (int j = 0; j < nWords; j++)
+                    count += Long.bitCount(query[j] & block[w++]);
+                both[i] = count;
+            }
+        }
+    },
+
+    /** Four words at a time with independent sums, widths that are a multiple of 256 bits. */
+    Unrolled {
+        @Override void intersect(long[] query, long[] block, int n, int[] both) {
+            final int nWords = query.length;
+            for (int i = 0, w = 0; i < n; i++) {
+                int c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+                for (int j = 0; j < nWords; j += 4, w += 4) {
+                    c0 += Long.bitCount(query[j] & block[w]);
+                    c1 += Long.bitCount(query[j + 1] & block[w + 1]);
+                    c2 += Long.bitCount(query[j + 2] & block[w + 2]);
+                    c3 += Long.bitCount(query[j + 3] & block[w + 3]);
+                }
+                both[i] = c0 + c1 + c2 + c3;
+            }
+        }
+    };
+
+    /**
+     * Count the bits in common between the query and the first 'n' fingerprints
+     * of the block.
+     *
+     * @param query the query words
+     * @param block fingerprint words, query.length words per fingerprint
+     * @param n     number of fingerprints in the block
+     * @param both  the counts are written here
+     */
+    abstract void intersect(long[] query, long[] block, int n, int[] both);
+
+    /**
+     * Select the kernel for fingerprints of the given number of words.
+     *
+     * @param nWords words per fingerprint
+     * @return the kernel
+     */
+    static PopcountKernel select(int nWords) {
+        if ("unrolled".equals(System.getProperty("kernel")) && nWords % 4 == 0)
+            return Unrolled;
+        return Scalar;
+    }
+}
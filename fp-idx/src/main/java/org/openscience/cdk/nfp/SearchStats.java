@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+/**
+ * What a single search did, returned by the search so an index can serve several searches at
+ * once. A bin is counted once however many threads scanned it, an entry is scored when its
+ * words are read and compared to the query (a batch search scores an entry once for each query
+ * admitted to its bin) and pruned when ruled out on its summary or folded fingerprint first.
+ * The bins outside the popcount bound are neither visited nor counted.
+ *
+ * @author John May
+ */
+final class SearchStats {
+
+    // bins visited, entries scored and entries pruned before being scored
+    int  bins;
+    long scored;
+    long pruned;
+
+    // time taken by the search (ns)
+    long nanos;
+
+    SearchStats() {
+    }
+
+    SearchStats(int bins, long scored, long pruned, long nanos) {
+        this.bins = bins;
+        this.scored = scored;
+        this.pruned = pruned;
+        this.nanos = nanos;
+    }
+
+    /**
+     * Add the bins and entries of another search (e.g. of another shard), the time is not
+     * added as the searches may have run at the same time.
+     *
+     * @param that the other search
+     * @return these stats
+     */
+    SearchStats add(SearchStats that) {
+        bins += that.bins;
+        scored += that.scored;
+        pruned += that.pruned;
+        return this;
+    }
+
+    @Override public String toString() {
+        return String.format("%d bins, %d scored, %d pruned in %.3f ms", bins, scored, pruned, nanos / 1e6);
+    }
+}
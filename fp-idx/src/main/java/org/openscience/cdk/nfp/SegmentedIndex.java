@@ -0,0 +1,614 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * An index made of several segments that are searched together, each segment is an index built
+ * by mkidx. New fingerprints (e.g. the weekly registrations) are indexed on their own and added
+ * as a segment so the cost of an update is proportional to its size and not the library. An
+ * entry is deleted by marking it in the {@link Tombstones} of its segment, the searches skip it.
+ * Compaction merges the segments into one and drops the deleted entries, the entries of each
+ * bin are streamed from the segments in turn so nothing is sorted.
+ * <br>
+ * The segments are listed in a manifest, a text file:
+ * <pre>
+ * #NFP segments 7
+ * chembl.seg.1.idx
+ * chembl.seg.6.idx
+ * </pre>
+ * The first line has the generation, it is incremented on every change, and each other line is
+ * an index file in the same directory as the manifest. The files of an added segment are renamed
+ * so they belong to the manifest. A change writes a new manifest and renames it over the old one
+ * so a reader sees either the old or the new segments, changes are made under a file lock so
+ * several processes can update the same index. An entry is numbered by its position in the
+ * segments one after another. A search uses a {@link View}, a snapshot of the segments, the
+ * manifest is checked for changes (at most once a second) when a view is requested.
+ *
+ * @author John May
+ */
+final class SegmentedIndex implements Closeable {
+
+    static final String MAGIC = "#NFP segments";
+
+    // how often the manifest is checked for changes made by another process (ms)
+    private static final long REFRESH_INTERVAL = 1000;
+
+    // the manifest, null if this is a single (plain) index
+    private final File manifest;
+
+    // the open segments by file name
+    private final Map<String, SimilarityIndex> open = new HashMap<String, SimilarityIndex>();
+
+    private volatile View view;
+    private volatile long lastChecked;
+
+    private SegmentedIndex(File manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Load a segmented index from its manifest. A plain index may also be loaded, it has a
+     * single segment that can not be changed.
+     *
+     * @param f the manifest or index file
+     * @return the segmented index
+     * @throws IOException the file could not be read or a segment could not be loaded
+     */
+    static SegmentedIndex load(File f) throws IOException {
+        if (!isManifest(f)) {
+            SegmentedIndex idx = new SegmentedIndex(null);
+            idx.view = new View(0, new String[]{f.getName()}, new SimilarityIndex[]{SimilarityIndex.load(f)});
+            return idx;
+        }
+        SegmentedIndex idx = new SegmentedIndex(f);
+        idx.refresh();
+        return idx;
+    }
+
+    /**
+     * Create a segmented index with an index as its first segment, the files of the index
+     * (ids, folded fingerprints...) are renamed so they belong to the manifest.
+     *
+     * @param manifest the manifest to create
+     * @param idx      the index file
+     * @return the segmented index
+     * @throws IOException the manifest already exists or the index could not be moved
+     */
+    static SegmentedIndex create(File manifest, File idx) throws IOException {
+        if (manifest.exists())
+            throw new IOException(manifest + " already exists");
+        SimilarityIndex.load(idx).close();
+        String name = segmentName(manifest, 1);
+        move(idx, new File(manifest.getAbsoluteFile().getParentFile(), name));
+        writeManifest(manifest, 1, Collections.singletonList(name));
+        return load(manifest);
+    }
+
+    static boolean isManifest(File f) throws IOException {
+        try (FileInputStream in = new FileInputStream(f)) {
+            byte[] magic = MAGIC.getBytes(StandardCharsets.UTF_8);
+            byte[] bytes = new byte[magic.length];
+            int n = 0, read;
+            while (n < bytes.length && (read = in.read(bytes, n, bytes.length - n)) > 0)
+                n += read;
+            return Arrays.equals(magic, bytes);
+        }
+    }
+
+    /**
+     * The current segments, the manifest is checked for changes if it has not been checked
+     * in the last second. The segments of the view stay open until it is closed, a segment
+     * removed by a compaction meanwhile is released after that.
+     *
+     * @return a snapshot of the segments, to be closed once the search is done
+     * @throws IOException the manifest changed and the new segments could not be loaded
+     */
+    View view() throws IOException {
+        if (manifest != null && System.currentTimeMillis() - lastChecked >= REFRESH_INTERVAL)
+            refresh();
+        while (true) {
+            View view = this.view;
+            try {
+                view.index.acquire();
+                return view;
+            } catch (IllegalStateException e) {
+                // a segment was retired, there is a newer view unless the index was closed
+                if (view == this.view)
+                    throw e;
+            }
+        }
+    }
+
+    /**
+     * Can the index be changed, a plain index loaded as a single segment can not.
+     *
+     * @return the index has a manifest
+     */
+    boolean segmented() {
+        return manifest != null;
+    }
+
+    /**
+     * Number of segments in the current view.
+     *
+     * @return the segments
+     */
+    int segments() {
+        return view.segments.length;
+    }
+
+    /**
+     * Length of the fingerprints in the index (bits).
+     *
+     * @return the length
+     */
+    int length() {
+        return view.segments[0].length();
+    }
+
+    /**
+     * The fingerprint type the index was built from, an empty string if not known.
+     *
+     * @return the type
+     */
+    String type() {
+        return view.segments[0].type();
+    }
+
+    /**
+     * Re-read the manifest, if the generation has changed the new segments are loaded, the
+     * deleted entries of the existing segments are reloaded and the segments that are no
+     * longer listed are closed.
+     */
+    synchronized void refresh() throws IOException {
+
+        lastChecked = System.currentTimeMillis();
+
+        List<String> lines = new ArrayList<String>();
+        try (BufferedReader rdr = new BufferedReader(new InputStreamReader(new FileInputStream(manifest),
+                                                                           StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = rdr.readLine()) != null) {
+                if (!line.trim().isEmpty())
+                    lines.add(line.trim());
+            }
+        }
+
+        if (lines.isEmpty() || !lines.get(0).startsWith(MAGIC))
+            throw new IOException(manifest + " is not a segmented index");
+        final long generation;
+        try {
+            generation = Long.parseLong(lines.get(0).substring(MAGIC.length()).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid generation in " + manifest + ": " + lines.get(0));
+        }
+        if (view != null && view.generation == generation)
+            return;
+
+        String[] names = lines.subList(1, lines.size()).toArray(new String[lines.size() - 1]);
+        if (names.length == 0)
+            throw new IOException(manifest + " has no segments");
+
+        SimilarityIndex[] segments = new SimilarityIndex[names.length];
+        for (int i = 0; i < names.length; i++) {
+            File f = file(names[i]);
+            SimilarityIndex segment = open.get(names[i]);
+            if (segment == null) {
+                open.put(names[i], segment = SimilarityIndex.load(f));
+            } else {
+                segment.tombstones(Tombstones.of(f).exists() ? Tombstones.load(Tombstones.of(f), segment.counts())
+                                                             : null);
+            }
+            if (i > 0 && (segment.length() != segments[0].length() || !segment.type().equals(segments[0].type())))
+                throw new IOException("Segment " + names[i] + " does not have the fingerprint length and type of " + names[0]);
+            segments[i] = segment;
+        }
+
+        view = new View(generation, names, segments);
+
+        // a segment is released once the views using it are closed, the new view is published
+        // first so a view requested after this does not use a closed segment
+        List<String> retired = new ArrayList<String>(open.keySet());
+        retired.removeAll(Arrays.asList(names));
+        for (String name : retired)
+            open.remove(name).close();
+    }
+
+    /**
+     * Add an index as a new segment, the fingerprints must have the same length and type. The
+     * files of the index are renamed so they belong to the manifest.
+     *
+     * @param idx the index file
+     * @throws IOException the index does not match or could not be moved
+     */
+    @SuppressWarnings("try")
+    synchronized void add(File idx) throws IOException {
+        checkSegmented();
+        // the lock is only held (never referenced) until the try block closes it
+        try (FileChannel lock = lock()) {
+            refresh();
+            SimilarityIndex delta = SimilarityIndex.load(idx);
+            delta.close();
+            if (delta.length() != length() || !delta.type().equals(type()))
+                throw new IOException(idx + " does not have the fingerprint length (" + length() + ") and type ("
+                                      + type() + ") of " + manifest);
+            long         generation = view.generation + 1;
+            List<String> names      = new ArrayList<String>(Arrays.asList(view.names));
+            names.add(segmentName(manifest, generation));
+            move(idx, file(names.get(names.size() - 1)));
+            writeManifest(manifest, generation, names);
+            refresh();
+        }
+    }
+
+    /**
+     * Delete the entries with the provided ids, in every segment.
+     *
+     * @param ids the ids of the entries to delete
+     * @return number of entries deleted
+     * @throws IOException the deleted entries could not be written
+     */
+    @SuppressWarnings("try")
+    synchronized int delete(Set<String> ids) throws IOException {
+        checkSegmented();
+        // the lock is only held (never referenced) until the try block closes it
+        try (FileChannel lock = lock()) {
+            refresh();
+            int nDeleted = 0;
+            for (int s = 0; s < view.segments.length; s++) {
+                SimilarityIndex segment = view.segments[s];
+                long[]          bits    = segment.tombstones();
+                bits = bits != null ? bits.clone() : new long[(segment.size() + 63) / 64];
+                int n = 0;
+                for (int i = 0; i < segment.size(); i++) {
+                    if ((bits[i >>> 6] & 1L << i) == 0 && ids.contains(segment.id(i))) {
+                        bits[i >>> 6] |= 1L << i;
+                        n++;
+                    }
+                }
+                if (n > 0) {
+                    Tombstones.write(Tombstones.of(file(view.names[s])), bits, segment.counts());
+                    nDeleted += n;
+                }
+            }
+            if (nDeleted > 0) {
+                writeManifest(manifest, view.generation + 1, Arrays.asList(view.names));
+                refresh();
+            }
+            return nDeleted;
+        }
+    }
+
+    /**
+     * Merge the segments into one, the deleted entries are dropped. The merged segment has
+     * folded fingerprints if any segment has them (using the longest folded length). Searches
+     * using a view from before the compaction are not disturbed.
+     *
+     * @return the segments were compacted, false if there was only one with no deleted entries
+     * @throws IOException the merged segment could not be written
+     */
+    @SuppressWarnings("try")
+    synchronized boolean compact() throws IOException {
+        checkSegmented();
+        // the lock is only held (never referenced) until the try block closes it
+        try (FileChannel lock = lock()) {
+            refresh();
+            View old = view;
+            if (old.segments.length == 1 && old.segments[0].nDeleted() == 0)
+                return false;
+            long   generation = old.generation + 1;
+            String name       = segmentName(manifest, generation);
+            File   tmp        = file(name + ".tmp");
+            try {
+                merge(old.segments, tmp);
+                move(tmp, file(name));
+            } catch (IOException e) {
+                delete(tmp);
+                throw e;
+            }
+            writeManifest(manifest, generation, Collections.singletonList(name));
+            refresh();
+            for (String retired : old.names)
+                delete(file(retired));
+            return true;
+        }
+    }
+
+    /**
+     * Write the live entries of the segments to a new index, the entries of each bin are taken
+     * from the segments in order.
+     */
+    private static void merge(SimilarityIndex[] segments, File f) throws IOException {
+
+        final int    length  = segments[0].length();
+        final int    nWords  = BinaryFingerprint.words(length);
+        final int    nBlocks = FingerprintSort.summaryBlocks(length);
+        final long[] words   = new long[nWords];
+
+        // the bins of each segment
+        final int[][] bins  = new int[segments.length][];
+        int           nBins = 0, maxId = 0, foldLength = 0;
+        for (int s = 0; s < segments.length; s++) {
+            bins[s] = segments[s].counts();
+            nBins = Math.max(nBins, bins[s].length - 1);
+            if (segments[s].ids() != null)
+                maxId = Math.max(maxId, segments[s].ids().maxLength());
+            if (segments[s].foldLength() > foldLength)
+                foldLength = segments[s].foldLength();
+        }
+
+        // count the live entries of each bin
+        final int[] counts = new int[nBins + 1];
+        for (int s = 0; s < segments.length; s++) {
+            for (int pop = 0; pop + 1 < bins[s].length; pop++) {
+                for (int i = bins[s][pop]; i < bins[s][pop + 1]; i++) {
+                    if (!segments[s].deleted(i))
+                        counts[pop + 1]++;
+                }
+            }
+        }
+        for (int i = 1; i < counts.length; i++)
+            counts[i] += counts[i - 1];
+        final int nEntries = counts[nBins];
+
+        final byte[] id      = new byte[maxId];
+        final byte[] summary = new byte[nBlocks];
+        final long[] folded  = new long[foldLength / 64];
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+             DataOutputStream fold = foldLength > 0 ? new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FoldedIndex.of(f)), 1 << 16))
+                                                    : null;
+             IdTable.Writer ids = new IdTable.Writer(IdTable.of(f), nEntries)) {
+
+            FingerprintSort.writeHeader(out, length, segments[0].type(), counts);
+            if (fold != null)
+                FoldedIndex.writeHeader(fold, length, foldLength, nEntries);
+
+            long position = out.size();
+            for (int pop = 0; pop < nBins; pop++) {
+                for (int s = 0; s < segments.length; s++) {
+                    if (pop + 1 >= bins[s].length)
+                        continue;
+                    LongBuffer buffer = segments[s].words(pop);
+                    for (int i = bins[s][pop]; i < bins[s][pop + 1]; i++) {
+                        buffer.get(words);
+                        if (segments[s].deleted(i))
+                            continue;
+                        for (long word : words)
+                            out.writeLong(word);
+                        position += 8 * nWords;
+                        if (fold != null) {
+                            BinaryFingerprint.fold(words, folded);
+                            for (long word : folded)
+                                fold.writeLong(word);
+                        }
+                        IdTable table = segments[s].ids();
+                        if (table != null) {
+                            ids.add(id, 0, table.copy(i, id, 0));
+                        } else {
+                            byte[] bytes = Integer.toString(i).getBytes(StandardCharsets.UTF_8);
+                            ids.add(bytes, 0, bytes.length);
+                        }
+                    }
+                }
+            }
+            for (long end = FingerprintSort.align(position); position < end; position++)
+                out.writeByte(0);
+
+            // the summaries follow the fingerprints, a second pass over the (mapped) words
+            for (int pop = 0; pop < nBins; pop++) {
+                for (int s = 0; s < segments.length; s++) {
+                    if (pop + 1 >= bins[s].length)
+                        continue;
+                    LongBuffer buffer = segments[s].words(pop);
+                    for (int i = bins[s][pop]; i < bins[s][pop + 1]; i++) {
+                        buffer.get(words);
+                        if (segments[s].deleted(i))
+                            continue;
+                        FingerprintSort.summarise(words, nBlocks, summary, 0);
+                        out.write(summary);
+                    }
+                }
+            }
+        }
+    }
+
+    private void checkSegmented() throws IOException {
+        if (manifest == null)
+            throw new IOException("A plain index can not be changed, create a segmented index from it");
+    }
+
+    // holds the lock until the channel is closed, other processes wait for it
+    private FileChannel lock() throws IOException {
+        FileChannel channel = new RandomAccessFile(manifest.getPath() + ".lock", "rw").getChannel();
+        try {
+            channel.lock();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private File file(String name) {
+        return new File(manifest.getAbsoluteFile().getParentFile(), name);
+    }
+
+    private static String segmentName(File manifest, long generation) {
+        return manifest.getName() + "." + generation + ".idx";
+    }
+
+    private static void writeManifest(File manifest, long generation, List<String> names) throws IOException {
+        File tmp = new File(manifest.getPath() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            out.write(MAGIC + " " + generation + "\n");
+            for (String name : names)
+                out.write(name + "\n");
+        }
+        if (!tmp.renameTo(manifest) && !(manifest.delete() && tmp.renameTo(manifest)))
+            throw new IOException("Could not replace " + manifest);
+    }
+
+    // the files of an index, the index and those stored alongside it
+    private static File[] files(File idx) {
+        return new File[]{idx, IdTable.of(idx), new File(idx.getPath() + ".id"), FoldedIndex.of(idx), Tombstones.of(idx)};
+    }
+
+    private static void move(File src, File dest) throws IOException {
+        File[] from = files(src), to = files(dest);
+        for (File f : to) {
+            if (f.exists())
+                throw new IOException(f + " already exists");
+        }
+        for (int i = 0; i < from.length; i++) {
+            if (from[i].exists() && !from[i].renameTo(to[i]))
+                throw new IOException("Could not move " + from[i] + " to " + to[i]);
+        }
+    }
+
+    private static void delete(File idx) {
+        for (File f : files(idx))
+            f.delete();
+    }
+
+    @Override public synchronized void close() throws IOException {
+        if (manifest == null) {
+            view.segments[0].close();
+            return;
+        }
+        for (SimilarityIndex segment : open.values())
+            segment.close();
+        open.clear();
+    }
+
+    /**
+     * A snapshot of the segments. The entries of the segments are numbered one after another,
+     * a hit is reported by this number and its id is found with {@link #id(int)}. The segments
+     * are searched together as the shards of a {@link ShardedIndex} (the ids are not qualified).
+     * The segments are held open until the view is closed, a view is closed once for each time
+     * it is returned by {@link SegmentedIndex#view()}.
+     */
+    static final class View implements Closeable {
+
+        final long              generation;
+        final String[]          names;
+        final SimilarityIndex[] segments;
+
+        private final ShardedIndex index;
+
+        View(long generation, String[] names, SimilarityIndex[] segments) {
+            this.generation = generation;
+            this.names = names;
+            this.segments = segments;
+            this.index = new ShardedIndex(names, segments, false);
+        }
+
+        /**
+         * Find the 'k' best hits over the segments, best first.
+         *
+         * @see ShardedIndex#top(BinaryFingerprint, int, Measure, ResultPairEmitter, ForkJoinPool)
+         */
+        SearchStats top(BinaryFingerprint query, int k, Measure measure, ResultPairEmitter emitter) {
+            return index.top(query, k, measure, emitter, null);
+        }
+
+        /**
+         * Select the entries of every segment at or above a threshold, the hits are in segment
+         * order.
+         *
+         * @see SimilarityIndex#findAll(BinaryFingerprint, double, Measure, ResultPairEmitter)
+         */
+        SearchStats findAll(BinaryFingerprint query, double threshold, Measure measure, ResultPairEmitter emitter) {
+            return index.findAll(query, threshold, measure, emitter, null);
+        }
+
+        /**
+         * Screen every segment for the entries that contain the query.
+         *
+         * @see SimilarityIndex#screen(BinaryFingerprint, ResultPairEmitter)
+         */
+        SearchStats screen(BinaryFingerprint query, ResultPairEmitter emitter) {
+            return index.screen(query, emitter, null);
+        }
+
+        /**
+         * The original id of an entry.
+         *
+         * @param i the entry, as passed to a {@link ResultPairEmitter}
+         * @return the id
+         * @see SimilarityIndex#id(int)
+         */
+        String id(int i) {
+            return index.id(i);
+        }
+
+        /**
+         * Number of entries in the segments, including those that have been deleted.
+         *
+         * @return the size
+         */
+        int size() {
+            return index.size();
+        }
+
+        /**
+         * Number of entries that have been deleted.
+         *
+         * @return entries deleted
+         */
+        int nDeleted() {
+            return index.nDeleted();
+        }
+
+        @Override public void close() {
+            index.release();
+        }
+    }
+}
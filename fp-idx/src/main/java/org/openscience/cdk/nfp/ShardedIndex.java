@@ -0,0 +1,481 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Several indexes (shards) searched as one, e.g. the compound collections of each vendor. The
+ * shards must have fingerprints of the same length and type. The entries are numbered across
+ * the shards one after another and the id of an entry is qualified by the name of its shard,
+ * '{shard}:{id}', unless there is only one.
+ * <br>
+ * A top-k search visits the bins of every shard outwards from the query popcount, the bins are
+ * split into slices that are claimed in order by the workers of a pool (or the calling thread)
+ * and the k-th best score found so far is shared (see {@link TopKScan}). A shard is not scanned
+ * further than the global k-th best allows and the work is balanced however the entries are
+ * spread over the shards. A threshold search (or screen) runs a task for each shard and the hits
+ * are emitted in shard order.
+ *
+ * @author John May
+ */
+final class ShardedIndex implements EntryIds, Closeable {
+
+    private final String[]          names;
+    private final SimilarityIndex[] shards;
+    private final boolean           qualified;
+
+    // the number of the first entry of each shard, the last is the size
+    private final int[] offsets;
+
+    // the shard names as UTF-8 with a ':', for the qualified ids
+    private final byte[][] prefixes;
+    private final int      maxLength;
+
+    /**
+     * @param names     the name of each shard
+     * @param shards    the shards
+     * @param qualified qualify the ids with the shard name
+     */
+    ShardedIndex(String[] names, SimilarityIndex[] shards, boolean qualified) {
+        if (shards.length == 0)
+            throw new IllegalArgumentException("No shards");
+        this.names = names;
+        this.shards = shards;
+        this.qualified = qualified;
+        this.offsets = new int[shards.length + 1];
+        this.prefixes = new byte[shards.length][];
+        int maxLength = 0;
+        for (int s = 0; s < shards.length; s++) {
+            offsets[s + 1] = offsets[s] + shards[s].size();
+            prefixes[s] = qualified ? (names[s] + ":").getBytes(StandardCharsets.UTF_8) : new byte[0];
+            int idLength = shards[s].ids() != null ? shards[s].ids().maxLength() : 11;
+            maxLength = Math.max(maxLength, prefixes[s].length + idLength);
+        }
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Load the shards, each is named by its file name without the '.idx' extension.
+     *
+     * @param files the index files
+     * @return the sharded index
+     * @throws IOException an index could not be loaded or the fingerprints do not match
+     */
+    static ShardedIndex load(List<File> files) throws IOException {
+        String[]          names  = new String[files.size()];
+        SimilarityIndex[] shards = new SimilarityIndex[files.size()];
+        try {
+            for (int s = 0; s < shards.length; s++) {
+                names[s] = files.get(s).getName();
+                if (names[s].endsWith(".idx"))
+                    names[s] = names[s].substring(0, names[s].length() - 4);
+                shards[s] = SimilarityIndex.load(files.get(s));
+                if (shards[s].length() != shards[0].length() || !shards[s].type().equals(shards[0].type()))
+                    throw new IOException(files.get(s) + " does not have the fingerprint length (" + shards[0].length()
+                                          + ") and type (" + shards[0].type() + ") of " + files.get(0));
+            }
+        } catch (IOException e) {
+            for (SimilarityIndex shard : shards) {
+                if (shard != null)
+                    shard.close();
+            }
+            throw e;
+        }
+        return new ShardedIndex(names, shards, shards.length > 1);
+    }
+
+    /**
+     * Find the 'k' best hits over all the shards, best first.
+     *
+     * @param query   query fingerprint
+     * @param k       number of hits to find
+     * @param measure similarity measure
+     * @param emitter receives the hits, best first
+     * @param pool    the pool to run the search on, null to search on this thread
+     * @return what the search did
+     */
+    SearchStats top(BinaryFingerprint query, int k, Measure measure, ResultPairEmitter emitter, ForkJoinPool pool) {
+
+        SimilarityIndex.checkTopK(k);
+
+        if (shards.length == 1 && pool == null)
+            return shards[0].top(query, k, measure, emitter);
+
+        acquire();
+        try {
+            return TopKScan.search(shards, offsets, query, k, measure, emitter, pool);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Select the entries of every shard at or above a threshold, the hits are in shard order.
+     *
+     * @param query     query fingerprint
+     * @param threshold the threshold (e.g. 0.8)
+     * @param measure   similarity measure
+     * @param emitter   receives the hits
+     * @param pool      the pool to search the shards on, null to search on this thread
+     * @return what the search did
+     */
+    SearchStats findAll(final BinaryFingerprint query, final double threshold, final Measure measure,
+                        ResultPairEmitter emitter, ForkJoinPool pool) {
+        long        t0    = System.nanoTime();
+        SearchStats stats = new SearchStats();
+        if (pool == null || shards.length == 1) {
+            for (int s = 0; s < shards.length; s++)
+                stats.add(shards[s].findAll(query, threshold, measure, offset(emitter, offsets[s])));
+            stats.nanos = System.nanoTime() - t0;
+            return stats;
+        }
+        List<Callable<Hits>> tasks = new ArrayList<Callable<Hits>>(shards.length);
+        for (int s = 0; s < shards.length; s++) {
+            final SimilarityIndex shard = shards[s];
+            final int             base  = offsets[s];
+            tasks.add(new Callable<Hits>() {
+                @Override public Hits call() {
+                    Hits hits = new Hits(base);
+                    hits.stats = shard.findAll(query, threshold, measure, hits);
+                    return hits;
+                }
+            });
+        }
+        for (Hits hits : results(pool, tasks)) {
+            hits.emit(emitter);
+            stats.add(hits.stats);
+        }
+        stats.nanos = System.nanoTime() - t0;
+        return stats;
+    }
+
+    /**
+     * Screen every shard for the entries that contain the query, the hits are in shard order.
+     *
+     * @param query   query fingerprint
+     * @param emitter receives the entries that pass the screen
+     * @param pool    the pool to search the shards on, null to search on this thread
+     * @return what the search did
+     * @see SimilarityIndex#screen(BinaryFingerprint, ResultPairEmitter)
+     */
+    SearchStats screen(final BinaryFingerprint query, ResultPairEmitter emitter, ForkJoinPool pool) {
+        long        t0    = System.nanoTime();
+        SearchStats stats = new SearchStats();
+        if (pool == null || shards.length == 1) {
+            for (int s = 0; s < shards.length; s++)
+                stats.add(shards[s].screen(query, offset(emitter, offsets[s])));
+            stats.nanos = System.nanoTime() - t0;
+            return stats;
+        }
+        List<Callable<Hits>> tasks = new ArrayList<Callable<Hits>>(shards.length);
+        for (int s = 0; s < shards.length; s++) {
+            final SimilarityIndex shard = shards[s];
+            final int             base  = offsets[s];
+            tasks.add(new Callable<Hits>() {
+                @Override public Hits call() {
+                    Hits hits = new Hits(base);
+                    hits.stats = shard.screen(query, hits);
+                    return hits;
+                }
+            });
+        }
+        for (Hits hits : results(pool, tasks)) {
+            hits.emit(emitter);
+            stats.add(hits.stats);
+        }
+        stats.nanos = System.nanoTime() - t0;
+        return stats;
+    }
+
+    /**
+     * Batch threshold search of every shard, see {@link SimilarityIndex#findAll(BinaryFingerprint[],
+     * double, Measure, ResultPairEmitter[])}.
+     */
+    SearchStats findAll(BinaryFingerprint[] queries, double threshold, Measure measure, ResultPairEmitter[] emitters) {
+        long        t0    = System.nanoTime();
+        SearchStats stats = new SearchStats();
+        for (int s = 0; s < shards.length; s++) {
+            ResultPairEmitter[] sinks = new ResultPairEmitter[emitters.length];
+            for (int i = 0; i < emitters.length; i++)
+                sinks[i] = offset(emitters[i], offsets[s]);
+            stats.add(shards[s].findAll(queries, threshold, measure, sinks));
+        }
+        stats.nanos = System.nanoTime() - t0;
+        return stats;
+    }
+
+    /**
+     * Batch top-k search of every shard, the hits of each shard are merged and the hits of each
+     * query are emitted together, best first. See {@link SimilarityIndex#top(BinaryFingerprint[],
+     * int, Measure, ResultPairEmitter[])}.
+     */
+    SearchStats top(BinaryFingerprint[] queries, int k, Measure measure, ResultPairEmitter[] emitters) {
+        SimilarityIndex.checkTopK(k);
+        if (shards.length == 1)
+            return shards[0].top(queries, k, measure, emitters);
+        final long            t0    = System.nanoTime();
+        final SearchStats     stats = new SearchStats();
+        final MinBinaryHeap[] heaps = new MinBinaryHeap[queries.length];
+        for (int i = 0; i < queries.length; i++)
+            heaps[i] = new MinBinaryHeap(k);
+        for (int s = 0; s < shards.length; s++) {
+            ResultPairEmitter[] sinks = new ResultPairEmitter[queries.length];
+            for (int i = 0; i < queries.length; i++) {
+                final MinBinaryHeap heap = heaps[i];
+                final int           base = offsets[s];
+                sinks[i] = new ResultPairEmitter() {
+                    @Override public void emit(int id, double score) {
+                        heap.add(base + id, score);
+                    }
+                };
+            }
+            stats.add(shards[s].top(queries, k, measure, sinks));
+        }
+        for (int i = 0; i < queries.length; i++) {
+            int n = heaps[i].sort();
+            for (int j = 1; j <= n; j++)
+                emitters[i].emit(heaps[i].key[j], heaps[i].val[j]);
+        }
+        stats.nanos = System.nanoTime() - t0;
+        return stats;
+    }
+
+    /**
+     * Run the tasks on the pool and wait for their results, a task that failed is rethrown.
+     */
+    static <T> List<T> results(ForkJoinPool pool, List<? extends Callable<T>> tasks) {
+        try {
+            List<T> results = new ArrayList<T>(tasks.size());
+            for (Future<T> future : pool.invokeAll(tasks))
+                results.add(future.get());
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static ResultPairEmitter offset(final ResultPairEmitter emitter, final int offset) {
+        if (offset == 0)
+            return emitter;
+        return new ResultPairEmitter() {
+            @Override public void emit(int id, double score) {
+                emitter.emit(offset + id, score);
+            }
+        };
+    }
+
+    /**
+     * The hits of a shard, kept until they can be emitted in shard order.
+     */
+    private static final class Hits implements ResultPairEmitter {
+
+        private final int base;
+        private int[]     ids    = new int[16];
+        private double[]  scores = new double[16];
+        private int       size;
+
+        // what the search of the shard did
+        SearchStats stats;
+
+        Hits(int base) {
+            this.base = base;
+        }
+
+        @Override public void emit(int id, double score) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, 2 * size);
+                scores = Arrays.copyOf(scores, 2 * size);
+            }
+            ids[size] = base + id;
+            scores[size++] = score;
+        }
+
+        void emit(ResultPairEmitter emitter) {
+            for (int i = 0; i < size; i++)
+                emitter.emit(ids[i], scores[i]);
+        }
+    }
+
+    /**
+     * The shard of an entry.
+     *
+     * @param i the entry, as passed to a {@link ResultPairEmitter}
+     * @return the shard
+     */
+    int shard(int i) {
+        int s = Arrays.binarySearch(offsets, i);
+        if (s < 0)
+            return -s - 2;
+        // skip empty shards
+        while (offsets[s + 1] == i)
+            s++;
+        return s;
+    }
+
+    /**
+     * The id of an entry, qualified by the name of its shard if there is more than one.
+     *
+     * @param i the entry, as passed to a {@link ResultPairEmitter}
+     * @return the id
+     * @see SimilarityIndex#id(int)
+     */
+    String id(int i) {
+        int s = shard(i);
+        String id = shards[s].id(i - offsets[s]);
+        return qualified ? names[s] + ":" + id : id;
+    }
+
+    @Override public int copy(int i, byte[] dest, int off) {
+        int    s      = shard(i);
+        int    j      = i - offsets[s];
+        byte[] prefix = prefixes[s];
+        System.arraycopy(prefix, 0, dest, off, prefix.length);
+        IdTable ids = shards[s].ids();
+        if (ids != null)
+            return prefix.length + ids.copy(j, dest, off + prefix.length);
+        byte[] id = Integer.toString(j).getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(id, 0, dest, off + prefix.length, id.length);
+        return prefix.length + id.length;
+    }
+
+    @Override public int maxLength() {
+        return maxLength;
+    }
+
+    /**
+     * The ids to write hits with, the id table of a single shard (null if it has none, the entry
+     * numbers are written) otherwise this index.
+     *
+     * @return the ids
+     */
+    EntryIds ids() {
+        return shards.length == 1 ? shards[0].ids() : this;
+    }
+
+    /**
+     * Number of entries in the shards, including those that have been deleted.
+     *
+     * @return the size
+     */
+    int size() {
+        return offsets[shards.length];
+    }
+
+    /**
+     * Number of entries that have been deleted.
+     *
+     * @return entries deleted
+     */
+    int nDeleted() {
+        int n = 0;
+        for (SimilarityIndex shard : shards)
+            n += shard.nDeleted();
+        return n;
+    }
+
+    /**
+     * Number of shards.
+     *
+     * @return the shards
+     */
+    int nShards() {
+        return shards.length;
+    }
+
+    /**
+     * The name of a shard.
+     *
+     * @param s the shard
+     * @return the name
+     */
+    String name(int s) {
+        return names[s];
+    }
+
+    /**
+     * The bins of a shard mapped on demand, see {@link SimilarityIndex#cache()}.
+     *
+     * @param s the shard
+     * @return the cache, null if the shard is mapped at once
+     */
+    BinCache cache(int s) {
+        return shards[s].cache();
+    }
+
+    int length() {
+        return shards[0].length();
+    }
+
+    String type() {
+        return shards[0].type();
+    }
+
+    /**
+     * Hold every shard open, see {@link SimilarityIndex#acquire()}.
+     *
+     * @throws IllegalStateException a shard is closed
+     */
+    void acquire() {
+        int n = 0;
+        try {
+            for (; n < shards.length; n++)
+                shards[n].acquire();
+        } catch (IllegalStateException e) {
+            while (n-- > 0)
+                shards[n].release();
+            throw e;
+        }
+    }
+
+    /**
+     * Finish using the shards, see {@link SimilarityIndex#release()}.
+     */
+    void release() {
+        for (SimilarityIndex shard : shards)
+            shard.release();
+    }
+
+    @Override public void close() throws IOException {
+        for (SimilarityIndex shard : shards)
+            shard.close();
+    }
+}
@@ -10,42 +10,59 @@ import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.exception.InvalidSmilesException;
-import org.openscience.cdk.fingerprint.CircularFingerprinter;
+import org.openscience.cdk.fingerprint.IFingerprinter;
 import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.silent.SilentChemObjectBuilder;
 import org.openscience.cdk.smiles.SmilesParser;
 
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.openscience.cdk.nfp.Similarity.Tanimoto;
 
 /**
- * Search a precomputed binary index for entries.
+ * Search a precomputed binary index for entries. Several indexes (e.g. one for each vendor) can
+ * be searched together, {@code -idx a.idx,b.idx}, and the hit ids are then qualified by the
+ * index name (see {@link ShardedIndex}).
  *
  * @author John May
  */
 public class SimSearch {
 
-  private final static SmilesParser          smipar = new SmilesParser(SilentChemObjectBuilder.getInstance());
-  private final static CircularFingerprinter fpr    = new CircularFingerprinter(CircularFingerprinter.CLASS_ECFP4);
-  private final static int                   len    = 1024;
+  private final static SmilesParser smipar = new SmilesParser(SilentChemObjectBuilder.getInstance());
 
-  private static final OptionSpec<Double>  thresholdSpec;
-  private static final OptionSpec<Integer> countSpec;
-  private static final OptionSpec<File>    idxSpec;
-  private static final OptionSpec<String>  inputSpec;
+  // the query fingerprints are the type and length of the index, set once it is loaded
+  private static IFingerprinter fpr;
+  private static int            len;
+
+  // report what each search did on standard error
+  private static boolean stats;
+
+  private static final OptionSpec<Double>     thresholdSpec;
+  private static final OptionSpec<Integer>    countSpec;
+  private static final OptionSpec<File>       idxSpec;
+  private static final OptionSpec<Integer>    threadsSpec;
+  private static final OptionSpec<Integer>    batchSpec;
+  private static final OptionSpec<Similarity> measureSpec;
+  private static final OptionSpec<Double>     tverskySpec;
+  private static final OptionSpec<Void>       screenSpec;
+  private static final OptionSpec<String>     formatSpec;
+  private static final OptionSpec<Void>       statsSpec;
+  private static final OptionSpec<String>     inputSpec;
 
   private static final OptionParser optpar = new OptionParser();
 
@@ -58,10 +75,33 @@ public class SimSearch {
                       .withRequiredArg()
                       .ofType(Integer.class)
                       .defaultsTo(10);
-    idxSpec = optpar.accepts("idx", "Index")
+    idxSpec = optpar.accepts("idx", "Index, several indexes are searched together (comma separated or repeated)")
                     .withRequiredArg()
                     .ofType(File.class)
+                    .withValuesSeparatedBy(',')
                     .required();
+    threadsSpec = optpar.accepts("threads", "Threads used for each search (top-k or each index)")
+                        .withRequiredArg()
+                        .ofType(Integer.class)
+                        .defaultsTo(1);
+    batchSpec = optpar.accepts("batch", "Number of queries from a file to search in one pass, hits may be interleaved")
+                      .withRequiredArg()
+                      .ofType(Integer.class)
+                      .defaultsTo(1);
+    measureSpec = optpar.accepts("measure", "Similarity measure (Tanimoto, Cosine, Dice or Manhatten)")
+                        .withRequiredArg()
+                        .ofType(Similarity.class)
+                        .defaultsTo(Similarity.Tanimoto);
+    tverskySpec = optpar.accepts("tversky", "Tversky measure with the query and target weights (e.g. 0.9,0.1)")
+                        .withRequiredArg()
+                        .ofType(Double.class)
+                        .withValuesSeparatedBy(',');
+    screenSpec = optpar.accepts("screen", "Find the entries with every query bit set (substructure screen)");
+    formatSpec = optpar.accepts("format", "Output format, tsv (query, score and id) or bin (16 byte records)")
+                       .withRequiredArg()
+                       .ofType(String.class)
+                       .defaultsTo("tsv");
+    statsSpec = optpar.accepts("stats", "Report the bins visited, entries scored and pruned, and time of each search (standard error)");
     inputSpec = optpar.nonOptions()
                       .ofType(String.class);
   }
@@ -70,7 +110,7 @@ public class SimSearch {
   {
     try {
       IAtomContainer mol = smipar.parseSmiles(smi);
-      return BinaryFingerprint.valueOf(fpr.getBitFingerprint(mol).asBitSet().toLongArray(), len);
+      return FpType.fingerprint(fpr, mol, len);
     } catch (InvalidSmilesException e) {
       return null;
     } catch (CDKException e) {
@@ -98,15 +138,48 @@ public class SimSearch {
       countSpecified = true;
     }
 
-    final File    fidx = optset.valueOf(idxSpec);
-    final Double  min  = optset.valueOf(thresholdSpec);
-    final Integer k    = optset.valueOf(countSpec);
+    final List<File> fidx = optset.valuesOf(idxSpec);
+    final Double     min  = optset.valueOf(thresholdSpec);
+    final Integer    k    = optset.valueOf(countSpec);
+
+    final ShardedIndex idx  = ShardedIndex.load(fidx);
+    final FpType       type = FpType.ofFile(idx.type());
+    if (type == null) {
+      System.err.println("Can not fingerprint the queries, unknown fingerprint type " + idx.type() + " in " + fidx.get(0));
+      return;
+    }
+    len = idx.length();
+    fpr = type.create(len);
+    final int             nThreads  = optset.valueOf(threadsSpec);
+    final ForkJoinPool    pool      = nThreads > 1 ? new ForkJoinPool(nThreads) : null;
+    final int             batchSize = optset.valueOf(batchSpec);
+    final boolean         screen    = optset.has(screenSpec);
+    stats = optset.has(statsSpec);
 
-    final SimilarityIndex idx = SimilarityIndex.load(fidx);
+    final Measure measure;
+    if (optset.has(tverskySpec)) {
+      List<Double> weights = optset.valuesOf(tverskySpec);
+      if (weights.size() != 2) {
+        System.err.println("Specify the Tversky weights as alpha,beta");
+        return;
+      }
+      measure = new Tversky(weights.get(0), weights.get(1));
+    } else {
+      measure = optset.valueOf(measureSpec);
+    }
 
-    try (final BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out))) {
+    final HitWriter.Format format;
+    try {
+      format = HitWriter.Format.valueOf(optset.valueOf(formatSpec).toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      System.err.println("Output format must be tsv or bin");
+      return;
+    }
 
+    try (final HitWriter out = new HitWriter(new FileOutputStream(FileDescriptor.out), format, idx.ids())) {
 
+      // the emitter is reused for every query
+      final HitWriter.Query emitter = out.query();
 
       int queryIdx = 0;
       for (String input : inputSpec.values(optset)) {
@@ -116,69 +189,119 @@ public class SimSearch {
                BufferedReader brdr = new BufferedReader(rdr)) {
 
 
-            String line;
-            while ((line = brdr.readLine()) != null) {
-
-              final String q = line;
-              ResultPairEmitter emitter = new ResultPairEmitter() {
-                @Override
-                public void emit(int id, double score)
-                {
-                  try {
-                    out.write(q);
-                    out.write(' ');
-                    out.write(Double.toString(score));
-                    out.write(' ');
-                    out.write(Integer.toString(id));
-                    out.write('\n');
-                  } catch (IOException e) {
-                    // ignored
-                  }
+            if (batchSize > 1 && !screen) {
+              queryIdx += searchBatches(idx, brdr, batchSize, countSpecified, k, min, measure, out, queryIdx);
+            } else {
+              String line;
+              while ((line = brdr.readLine()) != null) {
+                BinaryFingerprint fp = getFingerprint(line);
+                if (fp == null) {
+                  System.err.println("Skipping invalid query " + line);
+                  continue;
                 }
-              };
-
-              BinaryFingerprint   fp = getFingerprint(line);
-              if (countSpecified) {
-                idx.top(fp, k, Similarity.Tanimoto, emitter);
-              } else {
-                idx.findAll(fp, min, Similarity.Tanimoto, emitter);
+                report(queryIdx, queryIdx, search(idx, fp, screen, countSpecified, k, min, measure, pool, emitter.set(queryIdx, line)));
+                queryIdx++;
+                out.flush();
               }
-              queryIdx++;
-              out.flush();
             }
           }
         } else {
-          BinaryFingerprint   fp = getFingerprint(input);
-
-          final String q = input;
-          ResultPairEmitter emitter = new ResultPairEmitter() {
-            @Override
-            public void emit(int id, double score)
-            {
-              try {
-                out.write(q);
-                out.write(' ');
-                out.write(Integer.toString(id));
-                out.write(' ');
-                out.write(Double.toString(score));
-                out.write('\n');
-              } catch (IOException e) {
-                // ignored
-              }
-            }
-          };
-
-          if (countSpecified) {
-            idx.top(fp, k, Similarity.Tanimoto, emitter);
-          } else {
-            idx.findAll(fp, min, Similarity.Tanimoto, emitter);
+          BinaryFingerprint fp = getFingerprint(input);
+          if (fp == null) {
+            System.err.println("Skipping invalid query " + input);
+            continue;
           }
-
+          report(queryIdx, queryIdx, search(idx, fp, screen, countSpecified, k, min, measure, pool, emitter.set(queryIdx, input)));
           queryIdx++;
           out.flush();
         }
       }
     }
+
+    if (pool != null)
+      pool.shutdown();
+
+    // the bins mapped on demand (-Dchunks=true)
+    for (int s = 0; stats && s < idx.nShards(); s++) {
+      if (idx.cache(s) != null)
+        System.err.println(idx.name(s) + " cache: " + idx.cache(s));
+    }
+  }
+
+  private static SearchStats search(ShardedIndex idx, BinaryFingerprint fp, boolean screen,
+                                    boolean countSpecified, int k, double min, Measure measure,
+                                    ForkJoinPool pool, ResultPairEmitter emitter)
+  {
+    if (screen) {
+      return idx.screen(fp, emitter, pool);
+    } else if (countSpecified) {
+      return idx.top(fp, k, measure, emitter, pool);
+    } else {
+      return idx.findAll(fp, min, measure, emitter, pool);
+    }
+  }
+
+  /**
+   * Report what the search of the queries [first, last] did, if requested with -stats.
+   */
+  private static void report(int first, int last, SearchStats searchStats)
+  {
+    if (!stats)
+      return;
+    System.err.println((first == last ? "query " + first : "queries " + first + "-" + last) + ": " + searchStats);
+  }
+
+  /**
+   * Read the queries in blocks and search each block with a single pass over the index.
+   *
+   * @return number of queries searched
+   */
+  private static int searchBatches(ShardedIndex idx, BufferedReader brdr, int batchSize,
+                                   boolean countSpecified, int k, double min, Measure measure,
+                                   HitWriter out, int first) throws IOException
+  {
+    final List<String>            lines = new ArrayList<>(batchSize);
+    final List<BinaryFingerprint> fps   = new ArrayList<>(batchSize);
+
+    int count = 0;
+    String line;
+    while ((line = brdr.readLine()) != null) {
+      BinaryFingerprint fp = getFingerprint(line);
+      if (fp == null) {
+        System.err.println("Skipping invalid query " + line);
+        continue;
+      }
+      lines.add(line);
+      fps.add(fp);
+      if (fps.size() == batchSize) {
+        count += searchBatch(idx, lines, fps, countSpecified, k, min, measure, out, first + count);
+        lines.clear();
+        fps.clear();
+      }
+    }
+    if (!fps.isEmpty())
+      count += searchBatch(idx, lines, fps, countSpecified, k, min, measure, out, first + count);
+    return count;
+  }
+
+  private static int searchBatch(ShardedIndex idx, List<String> lines, List<BinaryFingerprint> fps,
+                                 boolean countSpecified, int k, double min, Measure measure,
+                                 HitWriter out, int first) throws IOException
+  {
+    final BinaryFingerprint[] queries  = fps.toArray(new BinaryFingerprint[fps.size()]);
+    final ResultPairEmitter[] emitters = new ResultPairEmitter[queries.length];
+    for (int i = 0; i < queries.length; i++)
+      emitters[i] = out.query().set(first + i, lines.get(i));
+
+    SearchStats searchStats;
+    if (countSpecified) {
+      searchStats = idx.top(queries, k, measure, emitters);
+    } else {
+      searchStats = idx.findAll(queries, min, measure, emitters);
+    }
+    out.flush();
+    report(first, first + queries.length - 1, searchStats);
+    return queries.length;
   }
 
   private static boolean isFile(String x)
@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *
+ * Contact: cdk-devel@lists.sourceforge.net
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+package org.openscience.cdk.nfp;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.fingerprint.IFingerprinter;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.openscience.cdk.smiles.SmilesParser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one or more indexes mapped and answers queries on a local (loopback) TCP socket so the
+ * JVM start up and index mapping are only paid once. Each connection is served by a thread from
+ * a fixed pool ({@code -threads}) and sends one request per line, a connection made while every
+ * thread is serving one gets the line 'error: server busy...' and is closed:
+ *
+ * <pre>
+ * top {k} {query} [{index}]
+ * min {threshold} {query} [{index}]
+ * screen {query} [{index}]
+ * </pre>
+ *
+ * The query is a SMILES or the hex fingerprint (as in an FPS file) and the index is named by its
+ * file name without the '.idx' extension, the first index is used if none is given. A SMILES is
+ * fingerprinted with the type and length the index was built with. The reply is
+ * a line for each hit, the id (from the id table if the index has one, otherwise the entry
+ * number) and score separated by a tab, and then an empty line. A request
+ * that can not be answered gets a single line starting 'error:' and then an empty line.
+ * <br>
+ * An index may be a {@link SegmentedIndex} (the manifest is named), each request searches
+ * the segments listed when it arrives so the index can be updated while it is served. With
+ * {@code -compact {n}} the segments are merged in the background once there are more than 'n'.
+ *
+ * @author John May
+ */
+public final class SimServer {
+
+    private static final OptionSpec<Integer> portSpec;
+    private static final OptionSpec<Integer> threadsSpec;
+    private static final OptionSpec<Integer> compactSpec;
+    private static final OptionSpec<File>    inputSpec;
+
+    private static final OptionParser optpar = new OptionParser();
+
+    static {
+        portSpec = optpar.accepts("port", "Port to listen on (loopback only)")
+                         .withRequiredArg()
+                         .ofType(Integer.class)
+                         .defaultsTo(7474);
+        threadsSpec = optpar.accepts("threads", "Number of connections served at once")
+                            .withRequiredArg()
+                            .ofType(Integer.class)
+                            .defaultsTo(Runtime.getRuntime().availableProcessors());
+        compactSpec = optpar.accepts("compact", "Compact a segmented index once it has more than this many segments (0: never)")
+                            .withRequiredArg()
+                            .ofType(Integer.class)
+                            .defaultsTo(0);
+        inputSpec = optpar.nonOptions()
+                          .ofType(File.class);
+    }
+
+    // the parser and fingerprinter are not thread safe, each connection thread has its own
+    private static final ThreadLocal<SmilesParser> smipar = new ThreadLocal<SmilesParser>() {
+        @Override protected SmilesParser initialValue() {
+            return new SmilesParser(SilentChemObjectBuilder.getInstance());
+        }
+    };
+
+    private static final ThreadLocal<Map<SegmentedIndex, IFingerprinter>> fpr = new ThreadLocal<Map<SegmentedIndex, IFingerprinter>>() {
+        @Override protected Map<SegmentedIndex, IFingerprinter> initialValue() {
+            return new HashMap<SegmentedIndex, IFingerprinter>();
+        }
+    };
+
+    // how often the segments are checked for compaction (seconds)
+    private static final int COMPACT_INTERVAL = 60;
+
+    private final Map<String, SegmentedIndex> indexes;
+    private final SegmentedIndex              first;
+
+    SimServer(Map<String, SegmentedIndex> indexes) {
+        this.indexes = indexes;
+        this.first = indexes.values().iterator().next();
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        final OptionSet optset;
+        try {
+            optset = optpar.parse(args);
+        } catch (OptionException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+
+        if (inputSpec.values(optset).isEmpty()) {
+            System.err.println("usage: ./simserver [-port {port}] [-threads {n}] [-compact {n}] {input.idx|input.seg} ...");
+            return;
+        }
+
+        final Map<String, SegmentedIndex> indexes = new LinkedHashMap<String, SegmentedIndex>();
+        for (File f : inputSpec.values(optset)) {
+            String name = f.getName();
+            if (name.endsWith(".idx") || name.endsWith(".seg"))
+                name = name.substring(0, name.length() - 4);
+            SegmentedIndex idx = SegmentedIndex.load(f);
+            indexes.put(name, idx);
+            try (SegmentedIndex.View view = idx.view()) {
+                System.err.println("Loaded " + name + " (" + view.size() + " entries"
+                                   + (idx.segmented() ? ", " + view.segments.length + " segments)" : ")"));
+            }
+            if (FpType.ofFile(idx.type()) == null)
+                System.err.println("Unknown fingerprint type " + idx.type() + " in " + name + ", only hex queries can be answered");
+        }
+
+        final SimServer       server      = new SimServer(indexes);
+        final int             nThreads    = optset.valueOf(threadsSpec);
+        final ExecutorService pool        = Executors.newFixedThreadPool(nThreads);
+        final Semaphore       connections = new Semaphore(nThreads);
+
+        final int                      maxSegments = optset.valueOf(compactSpec);
+        final ScheduledExecutorService compactor   = Executors.newSingleThreadScheduledExecutor();
+        if (maxSegments > 0) {
+            compactor.scheduleWithFixedDelay(new Runnable() {
+                @Override public void run() {
+                    for (Map.Entry<String, SegmentedIndex> e : indexes.entrySet()) {
+                        try {
+                            SegmentedIndex idx = e.getValue();
+                            if (idx.segmented() && idx.segments() > maxSegments && idx.compact()) {
+                                try (SegmentedIndex.View view = idx.view()) {
+                                    System.err.println("Compacted " + e.getKey() + " (" + view.size() + " entries)");
+                                }
+                            }
+                        } catch (IOException | RuntimeException ex) {
+                            System.err.println("Could not compact " + e.getKey() + ": " + ex.getMessage());
+                        }
+                    }
+                }
+            }, COMPACT_INTERVAL, COMPACT_INTERVAL, TimeUnit.SECONDS);
+        }
+
+        try (ServerSocket socket = new ServerSocket(optset.valueOf(portSpec), 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("Listening on " + socket.getLocalSocketAddress());
+            while (true) {
+                final Socket client = socket.accept();
+                // a connection holds its thread until closed, one that would wait for a thread
+                // is turned away rather than left unanswered
+                if (!connections.tryAcquire()) {
+                    busy(client, nThreads);
+                    continue;
+                }
+                pool.execute(new Runnable() {
+                    @Override public void run() {
+                        try {
+                            server.serve(client);
+                        } catch (IOException | RuntimeException e) {
+                            System.err.println("Connection closed: " + e);
+                        } finally {
+                            connections.release();
+                        }
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            compactor.shutdown();
+        }
+    }
+
+    /**
+     * Reply to a connection over the limit with an error and close it.
+     */
+    private static void busy(Socket client, int nThreads) {
+        try (Writer out = new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8)) {
+            out.write("error: server busy (" + nThreads + " connections open), try again later\n\n");
+        } catch (IOException e) {
+            System.err.println("Connection closed: " + e);
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    /**
+     * Answer the requests of a connection until it is closed.
+     */
+    void serve(Socket client) throws IOException {
+        client.setTcpNoDelay(true);
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty())
+                    continue;
+                answer(line, out);
+                out.write('\n');
+                out.flush();
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Answer a single request.
+     *
+     * @param request the request line
+     * @param out     where to write the hits
+     */
+    void answer(String request, final Writer out) throws IOException {
+
+        String[] args = request.trim().split("\\s+");
+        String   cmd  = args[0];
+
+        if (!cmd.equals("top") && !cmd.equals("min") && !cmd.equals("screen")) {
+            out.write("error: unknown request " + cmd + "\n");
+            return;
+        }
+
+        int nArgs = cmd.equals("screen") ? 2 : 3;
+        if (args.length < nArgs || args.length > nArgs + 1) {
+            out.write("error: expected " + cmd + (nArgs == 3 ? " {k|threshold}" : "") + " {query} [{index}]\n");
+            return;
+        }
+
+        final SegmentedIndex idx = args.length > nArgs ? indexes.get(args[nArgs]) : first;
+        if (idx == null) {
+            out.write("error: no index named " + args[nArgs] + "\n");
+            return;
+        }
+
+        BinaryFingerprint query = fingerprint(args[nArgs - 1], idx);
+        if (query == null) {
+            out.write("error: could not read query " + args[nArgs - 1] + "\n");
+            return;
+        }
+
+        // the segments when the request arrived, an update does not change them and they stay
+        // mapped until the reply is written
+        try (SegmentedIndex.View view = idx.view()) {
+            answer(cmd, args, query, view, out);
+        }
+    }
+
+    private static void answer(String cmd, String[] args, BinaryFingerprint query, final SegmentedIndex.View view,
+                               final Writer out) throws IOException {
+
+        ResultPairEmitter emitter = new ResultPairEmitter() {
+            @Override public void emit(int id, double score) {
+                try {
+                    out.write(view.id(id));
+                    out.write('\t');
+                    out.write(Double.toString(score));
+                    out.write('\n');
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+
+        // the number of hits or threshold is checked before anything is written
+        int    k         = 0;
+        double threshold = 0;
+        try {
+            if (cmd.equals("top"))
+                k = Integer.parseInt(args[1]);
+            else if (cmd.equals("min"))
+                threshold = Double.parseDouble(args[1]);
+        } catch (NumberFormatException e) {
+            out.write("error: not a number " + args[1] + "\n");
+            return;
+        }
+        if (cmd.equals("top") && k < 1) {
+            out.write("error: k must be at least 1, not " + args[1] + "\n");
+            return;
+        }
+
+        try {
+            switch (cmd) {
+                case "top":
+                    view.top(query, k, Similarity.Tanimoto, emitter);
+                    break;
+                case "min":
+                    view.findAll(query, threshold, Similarity.Tanimoto, emitter);
+                    break;
+                default:
+                    view.screen(query, emitter);
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            out.write("error: " + e.getMessage() + "\n");
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * The query fingerprint from a hex fingerprint of the index length or otherwise a SMILES
+     * fingerprinted with the type of the index.
+     *
+     * @return the fingerprint, null if the query could not be read
+     */
+    private static BinaryFingerprint fingerprint(String query, SegmentedIndex idx) {
+        int    length = idx.length();
+        long[] words  = new long[BinaryFingerprint.words(length)];
+        if (query.length() == FpsFmt.hexLength(length) && FpsFmt.readHex(query, length, words))
+            return BinaryFingerprint.valueOf(words, length);
+        FpType type = FpType.ofFile(idx.type());
+        if (type == null)
+            return null;
+        try {
+            IFingerprinter fp = fpr.get().get(idx);
+            if (fp == null)
+                fpr.get().put(idx, fp = type.create(length));
+            return FpType.fingerprint(fp, smipar.get().parseSmiles(query), length);
+        } catch (CDKException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -33,17 +33,29 @@ public enum Similarity implements Measure {
             return both / (double) (a + b + both);
         }
 
-        @Override public double bound(int q, int t) {
+        @Override public double bound(int q, int t, int n) {
             return q < t ? q / (double) t : t / (double) q;
         }
+
+        @Override public int[] range(int q, double threshold, int n) {
+            return fit(this, q, threshold, n, threshold * q, q / threshold);
+        }
     },
     Cosine {
         @Override public double compute(int a, int b, int both, int neither) {
             return both / Math.sqrt((a + both) * (b + both));
         }
 
-        @Override public double bound(int q, int t) {
-            return 1; // todo
+        // at most min(q,t) bits in common, computed as in compute() so the bound is never
+        // rounded below the score it allows
+        @Override public double bound(int q, int t, int n) {
+            if (q == 0 || t == 0)
+                return 0;
+            return Math.min(q, t) / Math.sqrt(q * t);
+        }
+
+        @Override public int[] range(int q, double threshold, int n) {
+            return fit(this, q, threshold, n, threshold * threshold * q, q / (threshold * threshold));
         }
     },
     Manhatten {
@@ -51,8 +63,13 @@ public enum Similarity implements Measure {
             return (a + b) / (double) (a + b + both + neither);
         }
 
-        @Override public double bound(int q, int t) {
-            return 1; // todo
+        // largest when as few bits as possible are in common, max(0, q+t-n)
+        @Override public double bound(int q, int t, int n) {
+            return Math.min(q + t, 2 * n - (q + t)) / (double) n;
+        }
+
+        @Override public int[] range(int q, double threshold, int n) {
+            return fit(this, q, threshold, n, threshold * n - q, (2 - threshold) * n - q);
         }
     },
     Dice {
@@ -60,10 +77,37 @@ public enum Similarity implements Measure {
             return 2 * both / (double) (a + b + 2 * both);
         }
 
-        @Override public double bound(int q, int t) {
-            return 1; // todo
+        @Override public double bound(int q, int t, int n) {
+            return 2 * Math.min(q, t) / (double) (q + t);
+        }
+
+        @Override public int[] range(int q, double threshold, int n) {
+            return fit(this, q, threshold, n, threshold * q / (2 - threshold), q * (2 - threshold) / threshold);
         }
     };
 
+    /**
+     * Fit an estimated popcount range (from the closed form of a bound) to exactly the
+     * popcounts in [0, n] whose bound reaches the threshold. Rounding in the estimate is
+     * corrected by stepping the ends, the bound is assumed to be unimodal in the target
+     * popcount so the admissible popcounts are a single range.
+     */
+    static int[] fit(Measure measure, int q, double threshold, int n, double lo, double hi) {
+        if (threshold <= 0)
+            return new int[]{0, n};
+        int min = (int) Math.max(0, Math.min(n, Math.ceil(lo)));
+        int max = (int) Math.max(0, Math.min(n, Math.floor(hi)));
+        while (min > 0 && measure.bound(q, min - 1, n) >= threshold)
+            min--;
+        while (min <= n && !(measure.bound(q, min, n) >= threshold))
+            min++;
+        if (min > n)
+            return new int[]{min, n};
+        max = Math.max(min, max);
+        while (max < n && measure.bound(q, max + 1, n) >= threshold)
+            max++;
+        while (!(measure.bound(q, max, n) >= threshold))
+            max--;
+        return new int[]{min, max};
+    }
 }
-
@@ -24,88 +24,226 @@
 
 package org.openscience.cdk.nfp;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
 
 /**
+ * A search keeps its state (cursors, views of the mapped buffers and what it did, see {@link
+ * SearchStats}) to itself so an index can be searched from several threads at once.
+ *
  * @author John May
  */
 public final class SimilarityIndex {
 
-    private final int[] counts;
-    private final int   offset, step;
+    /**
+     * Magic number at the start of a versioned index ('NFPI'), the unversioned format started
+     * with the number of bins which is always much smaller.
+     */
+    static final int MAGIC   = 0x4e465049;
+    static final int VERSION = 2;
+
+    // maximum size of a mapped segment, segments hold whole bins
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final int[]  counts;
+    private final long   offset;
+    private final int    step;
     private final FileChannel channel;
-    private final int length = 1024;
+    private final int    length;
+    private final String type;
+    private final PopcountKernel kernel;
+
+    // the original ids of the entries, null if there is no id table
+    private final IdTable ids;
+
+    // a bit for each deleted entry, null if there are none, the bitmap is replaced not modified
+    private volatile long[] deleted;
 
     private static final boolean LOAD_IN_CHUNKS = Boolean.getBoolean("chunks");
 
-    private final LoadingCache<Integer, ByteBuffer> cache;
-    private final ByteBuffer                        totalBuffer;
+    // most memory (MB) an index loaded in chunks keeps mapped
+    private static final long CACHE_SIZE = Integer.getInteger("cache", 256);
+
+    // number of entries in a bin slice, large bins are split so they can be shared between workers
+    static final int SLICE_SIZE = 4096;
+
+    // number of entries loaded at once from a bin, 256 x 1024 bit fingerprints is 32 KiB
+    private static final int BLOCK_SIZE = 256;
+
+    // the bins mapped on demand (if loaded in chunks)
+    private final BinCache cache;
+
+    // the mapped fingerprints (unless loaded in chunks)
+    private final Segments data;
+
+    // the mapped entry summaries, popcounts of each sub-block, null if the index has none
+    private final Segments summaries;
+    private final int      summaryBlocks;
+
+    // the mapped folded fingerprints stored alongside the index, null if there are none
+    private final Segments    folds;
+    private final int         foldLength;
+    private final FileChannel foldChannel;
 
     // total size of the index (number of the entries)
     private final int nEntries;
 
-    // search stats
-    private int nChecked = 0;
+    // the number of searches using the mapped memory, the sign bit is set once the index is closed
+    // and the memory is released when there are none
+    private final AtomicInteger users = new AtomicInteger();
+
+    private static final int CLOSED = Integer.MIN_VALUE;
 
-    private SimilarityIndex(final int[] counts, final FileChannel channel, int position) {
+    private SimilarityIndex(final int[] counts, final FileChannel channel, long position, int length, String type,
+                            int summaryBlocks, IdTable ids, FileChannel foldChannel, int foldLength) throws IOException {
 
         this.counts = counts;
+        this.ids = ids;
 
         this.offset = position;
-        this.step = (counts.length - 1) / 8;
+        this.length = length;
+        this.type = type;
+        this.step = 8 * ((length + 63) / 64);
+        this.kernel = PopcountKernel.select(step / 8);
         this.channel = channel;
 
         this.nEntries = counts[counts.length - 1];
+        this.summaryBlocks = summaryBlocks;
+
+        // summaries are small and always mapped, they start after the fingerprints
+        long summaryOffset = FingerprintSort.align(offset + (long) nEntries * step);
+        this.summaries = summaryBlocks > 0 ? new Segments(channel, counts, summaryOffset, summaryBlocks)
+                                           : null;
+
+        // the folded fingerprints are also small enough to always map
+        this.foldChannel = foldChannel;
+        this.foldLength = foldLength;
+        this.folds = foldChannel != null ? new Segments(foldChannel, counts, FoldedIndex.HEADER_SIZE, foldLength / 8)
+                                         : null;
 
         if (LOAD_IN_CHUNKS) {
-            totalBuffer = null;
-            cache = CacheBuilder.<Integer, ByteBuffer>newBuilder()
-                                .initialCapacity(100)
-                                .maximumSize(100)
-                                .build(new CacheLoader<Integer, ByteBuffer>() {
-                                    @Override
-                                    public ByteBuffer load(Integer bin) throws Exception {
-                                        int binSize = counts[bin + 1] - counts[bin];
-                                        return channel.map(READ_ONLY,
-                                                           offset + (counts[bin] * step),
-                                                           binSize * step);
-                                    }
-                                });
+            data = null;
+            cache = new BinCache(channel, counts, offset, step, CACHE_SIZE << 20);
         }
         else {
-            try {
-                totalBuffer = channel.map(READ_ONLY, offset, nEntries * step);
-            } catch (IOException e) {
-                throw new InternalError();
-            }
+            data = new Segments(channel, counts, offset, step);
             cache = null;
         }
     }
 
+    SearchStats top(BinaryFingerprint query, int k, Measure measure, ResultPairEmitter emitter) {
+        checkTopK(k);
+        long t0 = System.nanoTime();
+        acquire();
+        try {
+            int queryCardinality = query.cardinality();
+
+            int[] ordering = binOrder(queryCardinality);
+            int n = ordering.length;
+
+            MinBinaryHeap heap    = new MinBinaryHeap(k);
+            Scanner       scanner = new Scanner(query, measure);
+
+            // for each bin (by popcount)
+            for (int i = 0; i < n; i++) {
+                final int popcount = ordering[i];
+
+                if (popcount < 0 || popcount >= counts.length)
+                    continue;
+
+                // not a break, the bound is not monotone over the bin order for small popcounts
+                if (heap.full() && heap.min() > measure.bound(queryCardinality, popcount, length))
+                    continue;
+
+                scanner.scan(popcount, 0, counts[popcount + 1] - counts[popcount], Double.NEGATIVE_INFINITY, heap, null);
+            }
+
+            emit(heap, emitter);
+            return scanner.stats(t0);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Parallel variant of {@link #top(BinaryFingerprint, int, Measure, ResultPairEmitter)}. The
+     * bins are visited in the same order but large bins are split into slices and the slices are
+     * shared out between workers of the provided pool. Each worker keeps its own heap and publishes
+     * its k-th best score so all workers can still stop early on the {@link Measure#bound(int, int, int)}.
+     * The worker heaps are merged at the end and emitted best first.
+     *
+     * @param query   query fingerprint
+     * @param k       number of hits to find
+     * @param measure similarity measure
+     * @param emitter receives the hits, best first
+     * @param pool    the pool to run the search on
+     * @return what the search did
+     */
+    SearchStats top(BinaryFingerprint query, int k, Measure measure, ResultPairEmitter emitter, ForkJoinPool pool) {
+        checkTopK(k);
+        acquire();
+        try {
+            return TopKScan.search(new SimilarityIndex[]{this}, new int[]{0}, query, k, measure, emitter, pool);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * A top-k search must find at least one hit.
+     *
+     * @param k number of hits to find
+     * @throws IllegalArgumentException k is less than 1
+     */
+    static void checkTopK(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("The number of hits (k) must be at least 1: " + k);
+    }
 
-    void top(BinaryFingerprint query, int k, Measure measure, ResultPairEmitter emitter) {
+    /**
+     * Sort the heap in place and send the hits to the emitter, best first.
+     */
+    private static void emit(MinBinaryHeap heap, ResultPairEmitter emitter) {
+        int n = heap.sort();
+        for (int i = 1; i <= n; i++)
+            emitter.emit(heap.key[i], heap.val[i]);
+    }
 
-        int queryCardinality = query.cardinality();
+    /**
+     * The order in which bins should be visited for a top-k search, the bin of the query
+     * popcount first then alternating above and below.
+     *
+     * @param queryCardinality popcount of the query
+     * @return popcount bins to visit
+     */
+    private int[] binOrder(int queryCardinality) {
+        return binOrder(queryCardinality, counts.length - 1);
+    }
 
-        int[] ordering = new int[counts.length + 2];
+    /**
+     * The order in which bins should be visited for a top-k search of indexes with 'nBins' bins.
+     *
+     * @param queryCardinality popcount of the query
+     * @param nBins            number of bins
+     * @return popcount bins to visit
+     */
+    static int[] binOrder(int queryCardinality, int nBins) {
+        int[] ordering = new int[nBins + 3];
         int n = 0;
-        int max = counts.length - 1;
-        ordering[n++] = queryCardinality;
+        int max = nBins;
+        if (queryCardinality < max)
+            ordering[n++] = queryCardinality;
 
         int jHi = queryCardinality + 1;
         int jLo = queryCardinality - 1;
@@ -114,73 +252,315 @@ public final class SimilarityIndex {
                 ordering[n++] = jHi++;
             if (jLo > 0)
                 ordering[n++] = jLo--;
-            if (jLo == 0 && jHi == max)
+            if (jLo <= 0 && jHi >= max)
                 break;
         }
+        return Arrays.copyOf(ordering, n);
+    }
 
-        MinBinaryHeap heap = new MinBinaryHeap(k);
+    /**
+     * A scanner for a search of several indexes together, the hits are numbered from 'base'.
+     *
+     * @param query   query fingerprint
+     * @param measure similarity measure
+     * @param base    the number of the first entry of this index
+     * @param bins    the bins visited by the search, shared by the scanners of this index
+     * @return the scanner, only to be used by one thread
+     * @see TopKScan
+     */
+    Scanner scanner(BinaryFingerprint query, Measure measure, int base, Bins bins) {
+        return new Scanner(query, measure, base, bins);
+    }
 
-        long[] queryWords = query.toBitset().toLongArray();
+    /**
+     * The bins of a new search, to share between its scanners.
+     *
+     * @return the bins, none visited
+     */
+    Bins bins() {
+        return new Bins();
+    }
 
-        nChecked = 0;
+    /**
+     * The bins of this index visited by one search, shared by the scanners (threads) of the
+     * search. Each bin is fetched once per search however many slices of it are scanned, if
+     * the index is loaded in chunks that is one request of the {@link BinCache} for each bin
+     * a query visits. Fetching a bin only holds up the other scanners of the same search.
+     */
+    final class Bins {
 
-        // for each bin (by popcount)
-        for (int i = 0; i < n; i++) {
-            final int popcount = ordering[i];
+        private final ByteBuffer[] buffers = new ByteBuffer[counts.length - 1];
 
-            if (popcount < 0 || popcount >= counts.length)
-                continue;
+        /**
+         * A view of the words of a bin, fetched if this search has not visited it yet.
+         *
+         * @param pop the bin
+         * @return the words, positioned at the start of the bin
+         */
+        LongBuffer words(int pop) {
+            ByteBuffer buffer;
+            synchronized (this) {
+                buffer = buffers[pop];
+                if (buffer == null)
+                    buffer = buffers[pop] = binBuffer(pop);
+            }
+            return SimilarityIndex.this.words(buffer, pop);
+        }
 
-            if (k <= heap.size && heap.min() > measure.bound(queryCardinality, popcount))
-                break;
+        /**
+         * Number of bins visited.
+         *
+         * @return bins visited
+         */
+        synchronized int visited() {
+            int n = 0;
+            for (ByteBuffer buffer : buffers)
+                if (buffer != null)
+                    n++;
+            return n;
+        }
+    }
 
-            int binSize = counts[popcount + 1] - counts[popcount];
-            nChecked += binSize;
+    /**
+     * A view of the words of a bin, the view has its own position so this may be
+     * used from several threads.
+     *
+     * @param pop the bin
+     * @return the words, positioned at the start of the bin
+     */
+    LongBuffer words(int pop) {
+        return words(binBuffer(pop), pop);
+    }
 
-            int idOffset = counts[popcount];
-            ByteBuffer buffer = buffer(popcount);
-            
-            // for each fingerprint in bin
-            for (int fpId = 0; fpId < binSize; fpId++) {
+    private LongBuffer words(ByteBuffer bin, int pop) {
+        ByteBuffer buffer = bin.duplicate();
+        buffer.position(binStart(pop));
+        return buffer.asLongBuffer();
+    }
 
-                int both = 0;
-                for (long word : queryWords) {
-                    both += Long.bitCount(word & buffer.getLong());
+    private ByteBuffer binBuffer(int pop) {
+        if (LOAD_IN_CHUNKS) {
+            try {
+                return cache.get(pop);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return data.buffers[data.binSegment[pop]];
+    }
+
+    private int binStart(int pop) {
+        return LOAD_IN_CHUNKS ? 0 : data.binOffset[pop];
+    }
+
+    /**
+     * Scans bins for a single query. Before the words of a block of entries are read their
+     * summaries are checked, an entry can have at most sum(min(q[b], t[b])) bits in common with
+     * the query (q[b] and t[b] the popcounts of sub-block 'b') and is pruned if that is too few
+     * to reach the current threshold. If the index has folded fingerprints the entries that
+     * survive are then checked against the bound from their folded words (see {@link
+     * FoldedIndex}). Only the words of the entries that survive both are read and scored. A
+     * scanner is only used by one thread, the scanners of the threads sharing a search fetch
+     * the bins they visit through the same {@link Bins}.
+     */
+    final class Scanner {
+
+        private final long[]   queryWords;
+        private final int      queryCardinality;
+        private final byte[]   querySummary;
+        private final long[][] queryPlanes;
+        private final Measure  measure;
+        private final long[]    deleted;
+        private final int       base;
+        private final Bins      bins;
+        private final long[]    block;
+        private final int[]     both      = new int[BLOCK_SIZE];
+        private final int[]     survivors = new int[BLOCK_SIZE];
+
+        // entries scored and entries pruned by their summary or folded fingerprint
+        int scored, pruned;
+
+        Scanner(BinaryFingerprint query, Measure measure) {
+            this(query, measure, 0, new Bins());
+        }
+
+        Scanner(BinaryFingerprint query, Measure measure, int base, Bins bins) {
+            this.queryWords = query.words;
+            this.queryCardinality = query.cardinality();
+            this.querySummary = new byte[summaryBlocks];
+            this.measure = measure;
+            this.deleted = SimilarityIndex.this.deleted;
+            this.base = base;
+            this.bins = bins;
+            this.block = new long[BLOCK_SIZE * queryWords.length];
+            if (summaryBlocks > 0)
+                FingerprintSort.summarise(queryWords, summaryBlocks, querySummary, 0);
+            this.queryPlanes = folds != null ? FoldedIndex.planes(queryWords, foldLength) : null;
+        }
+
+        /**
+         * Scan the entries [start, end) of a bin. If a heap is provided the hits are added to it
+         * and the threshold is raised to its minimum once full, otherwise the hits at or above the
+         * threshold are sent to the emitter.
+         */
+        void scan(int pop, int start, int end, double threshold, MinBinaryHeap heap, ResultPairEmitter emitter) {
+
+            // an empty bin is not mapped or counted as visited
+            if (start >= end)
+                return;
+
+            final int        nWords   = queryWords.length;
+            final int        idOffset = counts[pop];
+            final LongBuffer words    = bins.words(pop);
+            final ByteBuffer summary  = summaries != null ? summaries.bin(pop) : null;
+            final LongBuffer folded   = folds != null ? folds.bin(pop).asLongBuffer() : null;
+            final int        nFolded  = foldLength / 64;
+
+            for (int from = start; from < end; from += BLOCK_SIZE) {
+
+                int blockSize = Math.min(BLOCK_SIZE, end - from);
+
+                if (heap != null)
+                    threshold = Math.max(threshold, heap.threshold());
+
+                int minBoth = summary != null || folded != null ? minBoth(pop, threshold) : 0;
+                int n = 0;
+
+                if (minBoth > 0) {
+                    if (summary != null) {
+                        int pos = from * summaryBlocks;
+                        for (int i = 0; i < blockSize; i++) {
+                            int bound = 0;
+                            for (int b = 0; b < summaryBlocks; b++)
+                                bound += Math.min(querySummary[b] & 0xff, summary.get(pos++) & 0xff);
+                            if (bound >= minBoth)
+                                survivors[n++] = i;
+                        }
+                    } else {
+                        for (; n < blockSize; n++)
+                            survivors[n] = n;
+                    }
+                    if (folded != null) {
+                        int m = 0;
+                        for (int i = 0; i < n; i++) {
+                            if (FoldedIndex.bound(queryPlanes, folded, (from + survivors[i]) * nFolded) >= minBoth)
+                                survivors[m++] = survivors[i];
+                        }
+                        n = m;
+                    }
+                    pruned += blockSize - n;
+                    for (int i = 0; i < n; i++) {
+                        words.position((from + survivors[i]) * nWords);
+                        words.get(block, i * nWords, nWords);
+                    }
+                }
+                else {
+                    words.position(from * nWords);
+                    words.get(block, 0, blockSize * nWords);
+                    for (; n < blockSize; n++)
+                        survivors[n] = n;
                 }
 
-                int onlyA = queryCardinality - both;
-                int onlyB = popcount - both;
-                int neither = length - (both + onlyA + onlyB);
+                kernel.intersect(queryWords, block, n, both);
+                scored += n;
 
-                double sim = measure.compute(onlyA, onlyB, both, neither);
+                // for each fingerprint that was not pruned
+                for (int i = 0; i < n; i++) {
 
-                heap.add(idOffset + fpId, sim);
+                    int id = idOffset + from + survivors[i];
+                    if (deleted != null && deleted(deleted, id))
+                        continue;
+
+                    int onlyA   = queryCardinality - both[i];
+                    int onlyB   = pop - both[i];
+                    int neither = length - (both[i] + onlyA + onlyB);
+
+                    double sim = measure.compute(onlyA, onlyB, both[i], neither);
+
+                    if (heap != null)
+                        heap.add(base + id, sim);
+                    else if (sim >= threshold)
+                        emitter.emit(base + id, sim);
+                }
             }
         }
 
-        // FIXME: can do better with binary heap
-        for (Map.Entry<Integer,Double> e : heap.pairs()) {
-            emitter.emit(e.getKey(), e.getValue());
+        /**
+         * What the scanner did, for a search on a single thread.
+         *
+         * @param t0 when the search started (ns)
+         * @return the stats
+         */
+        SearchStats stats(long t0) {
+            return new SearchStats(bins.visited(), scored, pruned, System.nanoTime() - t0);
         }
 
+        /**
+         * The fewest bits an entry with popcount 'pop' must have in common with the query to
+         * reach the threshold. For fixed popcounts the similarity is assumed to only increase
+         * (or only decrease) with the bits in common, if it decreases nothing is pruned.
+         */
+        private int minBoth(int pop, double threshold) {
+            if (threshold == Double.NEGATIVE_INFINITY)
+                return 0;
+            int max = Math.min(queryCardinality, pop);
+            for (int both = 0; both <= max; both++) {
+                int onlyA = queryCardinality - both;
+                int onlyB = pop - both;
+                if (measure.compute(onlyA, onlyB, both, length - (both + onlyA + onlyB)) >= threshold)
+                    return both;
+            }
+            return max + 1;
+        }
     }
 
-    private ByteBuffer buffer(int pop) {
-        // Buffer loader
-        ByteBuffer buffer = null;
-        if (LOAD_IN_CHUNKS) {
-            try {
-                buffer = cache.get(pop);
-                buffer.position(0);
-            } catch (ExecutionException e) {
-                throw new InternalError(e.getMessage());
+    /**
+     * Mapped region of the index holding a fixed size record for each entry. Whole bins are
+     * packed into segments, a bin larger than a segment gets one to itself.
+     */
+    private static final class Segments {
+
+        // the mapped segments and for each bin the segment it is in and its offset
+        final ByteBuffer[] buffers;
+        final int[]        binSegment;
+        final int[]        binOffset;
+
+        Segments(FileChannel channel, int[] counts, long offset, int recordSize) throws IOException {
+            int nBins = counts.length - 1;
+            binSegment = new int[nBins];
+            binOffset = new int[nBins];
+            List<ByteBuffer> mapped = new ArrayList<ByteBuffer>();
+            int first = 0;
+            while (first < nBins) {
+                int last = first + 1;
+                while (last < nBins && (long) (counts[last + 1] - counts[first]) * recordSize <= SEGMENT_SIZE)
+                    last++;
+                long size = (long) (counts[last] - counts[first]) * recordSize;
+                if (size > Integer.MAX_VALUE)
+                    throw new IOException("Bin " + first + " is too large to map: " + size + " bytes");
+                for (int bin = first; bin < last; bin++) {
+                    binSegment[bin] = mapped.size();
+                    binOffset[bin] = (counts[bin] - counts[first]) * recordSize;
+                }
+                mapped.add(channel.map(READ_ONLY, offset + ((long) counts[first] * recordSize), size));
+                first = last;
             }
+            buffers = mapped.toArray(new ByteBuffer[mapped.size()]);
         }
-        else {
-            buffer = totalBuffer;
-            buffer.position(counts[pop] * step);
+
+        void unmap() {
+            for (ByteBuffer buffer : buffers)
+                Unmapper.unmap(buffer);
+        }
+
+        /**
+         * A view of the records of a bin, index 0 is the first record of the bin.
+         */
+        ByteBuffer bin(int pop) {
+            ByteBuffer buffer = buffers[binSegment[pop]].duplicate();
+            buffer.position(binOffset[pop]);
+            return buffer.slice();
         }
-        return buffer;
     }
 
     /**
@@ -190,76 +570,497 @@ public final class SimilarityIndex {
      * @param query     query fingerprint
      * @param threshold the threshold (e.g. 0.8)
      * @param measure   similarity measure
-     * @return FP indexes that match
+     * @param consumer  receives the hits
+     * @return what the search did
      */
-    void findAll(BinaryFingerprint query, double threshold, Measure measure, ResultPairEmitter consumer) {
+    SearchStats findAll(BinaryFingerprint query, double threshold, Measure measure, ResultPairEmitter consumer) {
+        long t0 = System.nanoTime();
+        acquire();
+        try {
+            final int queryCardinality = query.cardinality();
+
+            // only the bins in the admissible popcount range can hold a hit
+            final int[] range = measure.range(queryCardinality, threshold, length);
+            final int   lo    = Math.max(0, range[0]);
+            final int   hi    = Math.min(counts.length - 2, range[1]);
 
-        final int queryCardinality = query.cardinality();
+            Scanner scanner = new Scanner(query, measure);
 
-        // XXX: Tanimoto only
-        final int jLo = (int) Math.floor(threshold * queryCardinality);
-        final int jHi = (int) Math.min(counts.length-1, Math.ceil(queryCardinality / threshold));
+            // for each bin (by popcount)
+            for (int pop = lo; pop <= hi; pop++)
+                scanner.scan(pop, 0, counts[pop + 1] - counts[pop], threshold, null, consumer);
 
-        long[] queryWords = query.toBitset().toLongArray();
+            return scanner.stats(t0);
+        } finally {
+            release();
+        }
+    }
 
-        nChecked = 0;
+    /**
+     * Screen for the entries that have every bit of the query set (they {@link
+     * BinaryFingerprint#contains(BinaryFingerprint)} the query), the first stage of a
+     * substructure search. Only the bins with a popcount at least that of the query are
+     * visited and within those the sub-block summaries prune most of the entries. This is
+     * {@link #findAll(BinaryFingerprint, double, Measure, ResultPairEmitter)} with the
+     * {@link Tversky#SUBSTRUCTURE} measure at a threshold of 1.
+     *
+     * @param query   query fingerprint
+     * @param emitter receives the entries that pass the screen (with a score of 1)
+     * @return what the search did
+     */
+    SearchStats screen(BinaryFingerprint query, ResultPairEmitter emitter) {
+        if (query.cardinality() == 0) {
+            // every entry contains an empty query, nothing is scored
+            long         t0      = System.nanoTime();
+            final long[] deleted = this.deleted;
+            for (int id = 0; id < nEntries; id++) {
+                if (deleted == null || !deleted(deleted, id))
+                    emitter.emit(id, 1);
+            }
+            return new SearchStats(counts.length - 1, 0, 0, System.nanoTime() - t0);
+        }
+        return findAll(query, 1, Tversky.SUBSTRUCTURE, emitter);
+    }
 
-        // for each bin (by popcount)
-        for (int pop = jLo; pop <= jHi; pop++) {
+    /**
+     * Batch variant of {@link #findAll(BinaryFingerprint, double, Measure, ResultPairEmitter)}.
+     * Each bin is only streamed once, the fingerprints are loaded in blocks and each block is
+     * compared to every query whose bound admits the bin. Hits are sent to the emitter at the
+     * same position as the query, hits of different queries will be interleaved.
+     *
+     * @param queries   query fingerprints
+     * @param threshold the threshold (e.g. 0.8)
+     * @param measure   similarity measure
+     * @param emitters  emitter for each query
+     * @return what the search of the whole batch did
+     */
+    SearchStats findAll(BinaryFingerprint[] queries, double threshold, Measure measure, ResultPairEmitter[] emitters) {
+        long t0 = System.nanoTime();
+        acquire();
+        try {
+            final int[] cardinality = new int[queries.length];
+            for (int i = 0; i < queries.length; i++)
+                cardinality[i] = queries[i].cardinality();
 
-            int binSize = counts[pop + 1] - counts[pop];
-            nChecked += binSize;
+            final int[]  admitted = new int[queries.length];
+            final long[] block    = new long[BLOCK_SIZE * (step / 8)];
+            final int[]  both     = new int[BLOCK_SIZE];
 
-            int idOffset = counts[pop];
-            ByteBuffer buffer = buffer(pop);
+            final SearchStats stats = new SearchStats();
 
-            // for each fingerprint in bin
-            for (int fpId = 0; fpId < binSize; fpId++) {
+            // for each bin (by popcount)
+            for (int pop = 0; pop < counts.length - 1; pop++) {
 
-                int both = 0;
-                for (long word : queryWords) {
-                    both += Long.bitCount(word & buffer.getLong());
+                int nAdmitted = 0;
+                for (int i = 0; i < queries.length; i++) {
+                    if (measure.bound(cardinality[i], pop, length) >= threshold)
+                        admitted[nAdmitted++] = i;
                 }
 
-                int onlyA   = queryCardinality - both;
-                int onlyB   = pop - both;
-                int neither = length - (both + onlyA + onlyB);
+                if (nAdmitted > 0)
+                    scan(pop, queries, cardinality, admitted, nAdmitted, threshold, measure, emitters, block, both, stats);
+            }
 
-                double sim = measure.compute(onlyA, onlyB, both, neither);
+            stats.nanos = System.nanoTime() - t0;
+            return stats;
+        } finally {
+            release();
+        }
+    }
 
-                if (sim >= threshold)
-                    consumer.emit(idOffset + fpId, sim);
+    /**
+     * Batch variant of {@link #top(BinaryFingerprint, int, Measure, ResultPairEmitter)}. Each
+     * bin is only streamed once, bins are visited outwards from the mean query popcount and a
+     * query takes part in a bin until its heap is full and the bound can no longer improve it.
+     * The hits of each query are emitted together, best first, once all bins are done.
+     *
+     * @param queries  query fingerprints
+     * @param k        number of hits to find for each query
+     * @param measure  similarity measure
+     * @param emitters emitter for each query
+     * @return what the search of the whole batch did
+     */
+    SearchStats top(BinaryFingerprint[] queries, int k, Measure measure, ResultPairEmitter[] emitters) {
+        checkTopK(k);
+        long t0 = System.nanoTime();
+        acquire();
+        try {
+            final int[]               cardinality = new int[queries.length];
+            final MinBinaryHeap[]     heaps       = new MinBinaryHeap[queries.length];
+            final ResultPairEmitter[] sinks       = new ResultPairEmitter[queries.length];
+
+            long sum = 0;
+            for (int i = 0; i < queries.length; i++) {
+                cardinality[i] = queries[i].cardinality();
+                sum += cardinality[i];
+                final MinBinaryHeap heap = heaps[i] = new MinBinaryHeap(k);
+                sinks[i] = new ResultPairEmitter() {
+                    @Override public void emit(int id, double score) {
+                        heap.add(id, score);
+                    }
+                };
             }
+
+            final int[]  ordering = binOrder(queries.length == 0 ? 0 : (int) (sum / queries.length));
+            final int[]  admitted = new int[queries.length];
+            final long[] block    = new long[BLOCK_SIZE * (step / 8)];
+            final int[]  both     = new int[BLOCK_SIZE];
+
+            final SearchStats stats = new SearchStats();
+
+            for (int pop : ordering) {
+
+                int nAdmitted = 0;
+                for (int i = 0; i < queries.length; i++) {
+                    if (!heaps[i].full() || heaps[i].min() <= measure.bound(cardinality[i], pop, length))
+                        admitted[nAdmitted++] = i;
+                }
+
+                if (nAdmitted > 0)
+                    scan(pop, queries, cardinality, admitted, nAdmitted, Double.NEGATIVE_INFINITY, measure, sinks, block, both, stats);
+            }
+
+            for (int i = 0; i < queries.length; i++)
+                emit(heaps[i], emitters[i]);
+
+            stats.nanos = System.nanoTime() - t0;
+            return stats;
+        } finally {
+            release();
         }
     }
 
-    int checked() {
-        return nChecked;
+    /**
+     * Scan one bin for several queries. The bin is copied a block at a time into the provided
+     * scratch array and each block is compared against all the admitted queries before moving on.
+     */
+    private void scan(int pop, BinaryFingerprint[] queries, int[] cardinality, int[] admitted, int nAdmitted,
+                      double threshold, Measure measure, ResultPairEmitter[] emitters, long[] block, int[] both,
+                      SearchStats stats) {
+
+        final int    binSize = counts[pop + 1] - counts[pop];
+        final int    nWords  = step / 8;
+        final long[] deleted = this.deleted;
+
+        if (binSize == 0)
+            return;
+
+        stats.bins++;
+        stats.scored += (long) nAdmitted * binSize;
+
+        int idOffset = counts[pop];
+        LongBuffer words = words(pop);
+
+        for (int start = 0; start < binSize; start += BLOCK_SIZE) {
+
+            int blockSize = Math.min(BLOCK_SIZE, binSize - start);
+            words.get(block, 0, blockSize * nWords);
+
+            // for each query admitted to this bin
+            for (int j = 0; j < nAdmitted; j++) {
+
+                final int               q                = admitted[j];
+                final long[]            queryWords       = queries[q].words;
+                final int               queryCardinality = cardinality[q];
+                final ResultPairEmitter emitter          = emitters[q];
+
+                kernel.intersect(queryWords, block, blockSize, both);
+
+                // for each fingerprint in block
+                for (int fpId = 0; fpId < blockSize; fpId++) {
+
+                    if (deleted != null && deleted(deleted, idOffset + start + fpId))
+                        continue;
+
+                    int onlyA   = queryCardinality - both[fpId];
+                    int onlyB   = pop - both[fpId];
+                    int neither = length - (both[fpId] + onlyA + onlyB);
+
+                    double sim = measure.compute(onlyA, onlyB, both[fpId], neither);
+
+                    if (sim >= threshold)
+                        emitter.emit(idOffset + start + fpId, sim);
+                }
+            }
+        }
     }
 
+    /**
+     * Number of entries in the index, including those that have been deleted.
+     *
+     * @return the size
+     */
     int size() {
         return nEntries;
     }
 
+    /**
+     * The bins mapped on demand when the index is loaded in chunks ({@code -Dchunks=true}).
+     *
+     * @return the cache, null if the index is mapped at once
+     */
+    BinCache cache() {
+        return cache;
+    }
+
+    /**
+     * The index of the first entry of each bin (popcount), the last value is the size.
+     *
+     * @return the counts
+     */
+    int[] counts() {
+        return counts.clone();
+    }
+
+    /**
+     * Has an entry been deleted, the searches skip deleted entries.
+     *
+     * @param i the entry
+     * @return the entry is deleted
+     * @see Tombstones
+     */
+    boolean deleted(int i) {
+        long[] bits = deleted;
+        return bits != null && deleted(bits, i);
+    }
+
+    private static boolean deleted(long[] bits, int i) {
+        return (bits[i >>> 6] & 1L << i) != 0;
+    }
+
+    /**
+     * Number of entries that have been deleted.
+     *
+     * @return entries deleted
+     */
+    int nDeleted() {
+        return Tombstones.count(deleted);
+    }
+
+    /**
+     * The deleted entries, a bit for each entry. The bitmap must not be modified.
+     *
+     * @return the bitmap, null if no entries are deleted
+     */
+    long[] tombstones() {
+        return deleted;
+    }
+
+    /**
+     * Replace the deleted entries, a search that has already started does not see the change.
+     *
+     * @param bits a bit for each entry, null if no entries are deleted
+     */
+    void tombstones(long[] bits) {
+        if (bits != null && bits.length != (nEntries + 63) / 64)
+            throw new IllegalArgumentException("Expected a bit for each of the " + nEntries + " entries");
+        this.deleted = bits;
+    }
+
+    /**
+     * The original id of an entry (e.g. from the FPS file), found in the id table stored with
+     * the index. If there is no id table the entry number is used.
+     *
+     * @param i the entry, as passed to a {@link ResultPairEmitter}
+     * @return the id
+     * @see IdTable#of(File)
+     */
+    String id(int i) {
+        acquire();
+        try {
+            return ids != null ? ids.get(i) : Integer.toString(i);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * The id table stored with the index.
+     *
+     * @return the id table, null if there is none
+     */
+    IdTable ids() {
+        return ids;
+    }
+
+    /**
+     * Mark the mapped memory as in use, a search (or id lookup) holds the index open until it
+     * is {@link #release()}d.
+     *
+     * @throws IllegalStateException the index is closed and the memory has been released
+     */
+    void acquire() {
+        int n;
+        do {
+            if ((n = users.get()) == CLOSED)
+                throw new IllegalStateException("The index is closed");
+        } while (!users.compareAndSet(n, n + 1));
+    }
+
+    /**
+     * Finish using the mapped memory, the last to finish after the index is closed releases it.
+     */
+    void release() {
+        if (users.decrementAndGet() == CLOSED) {
+            try {
+                free();
+            } catch (IOException e) {
+                // the files are read only, an error closing them can be ignored
+            }
+        }
+    }
+
+    /**
+     * Close the index and release the mapped memory (see {@link Unmapper}) rather than waiting
+     * for it to be garbage collected. The searches (and id lookups) that are running finish
+     * first, the memory is released when the last one does (the ids of their hits can still be
+     * looked up). Once released a search throws an {@link IllegalStateException}.
+     *
+     * @throws IOException the files could not be closed
+     */
     void close() throws IOException {
-        channel.close();
+        int n;
+        do {
+            if ((n = users.get()) < 0)
+                return;
+        } while (!users.compareAndSet(n, n | CLOSED));
+        if (n == 0)
+            free();
+    }
+
+    private void free() throws IOException {
+        try {
+            channel.close();
+            if (ids != null)
+                ids.close();
+            if (foldChannel != null)
+                foldChannel.close();
+        } finally {
+            if (data != null)
+                data.unmap();
+            if (cache != null)
+                cache.unmap();
+            if (summaries != null)
+                summaries.unmap();
+            if (folds != null)
+                folds.unmap();
+        }
     }
 
+    /**
+     * Length of the folded fingerprints stored alongside the index (bits).
+     *
+     * @return the length, 0 if there are none
+     * @see FoldedIndex
+     */
+    int foldLength() {
+        return foldLength;
+    }
+
+    /**
+     * Length of the fingerprints in the index (bits).
+     *
+     * @return the length
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * The fingerprint type the index was built from, as in the FPS {@code #type=} header, an
+     * empty string if not known.
+     *
+     * @return the type
+     */
+    String type() {
+        return type;
+    }
+
+    /**
+     * Load an index from a file. Both the versioned format and the original unversioned format
+     * (bin count, counts, 1024 bit fingerprints) are read. The id table, folded fingerprints and
+     * deleted entries are also loaded if they are alongside the index.
+     *
+     * @param f the index file
+     * @return the index
+     * @throws IOException the file could not be read or is not an index
+     * @see FingerprintSort#index(List, int, String, File)
+     */
     static SimilarityIndex load(File f) throws IOException {
         RandomAccessFile raf = new RandomAccessFile(f, "r");
         FileChannel channel = raf.getChannel();
 
         // HEADER
-        int nBins = raf.readInt();
+        int     nBins     = raf.readInt();
+        int     length    = 1024;
+        String  type      = "";
+        int     nBlocks   = 0;
+        boolean versioned = nBins == MAGIC;
+
+        if (versioned) {
+            int version = raf.readInt();
+            if (version > VERSION) {
+                raf.close();
+                throw new IOException("Unsupported index version " + version + " in " + f);
+            }
+            length = raf.readInt();
+            type = raf.readUTF();
+            if (version >= 2)
+                nBlocks = raf.readInt();
+            nBins = raf.readInt();
+        }
 
         int[] counts = new int[nBins];
         for (int i = 0; i < nBins; i++)
             counts[i] = raf.readInt();
 
-        int offset = (int) channel.position();
+        long[] deleted = null;
+        if (Tombstones.of(f).exists()) {
+            try {
+                deleted = Tombstones.load(Tombstones.of(f), counts);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        // versioned indexes start the fingerprints on a word boundary
+        long offset = versioned ? FingerprintSort.align(channel.position())
+                                : channel.position();
         channel.position(0);
 
-        return new SimilarityIndex(counts, channel, offset);
+        IdTable ids = null;
+        if (IdTable.of(f).exists()) {
+            ids = IdTable.load(IdTable.of(f));
+            if (ids.size() != counts[nBins - 1]) {
+                ids.close();
+                raf.close();
+                throw new IOException("The id table " + IdTable.of(f) + " does not match the index");
+            }
+        }
+
+        FileChannel foldChannel = null;
+        int         foldLength  = 0;
+        if (FoldedIndex.of(f).exists()) {
+            RandomAccessFile fold = new RandomAccessFile(FoldedIndex.of(f), "r");
+            if (fold.length() < FoldedIndex.HEADER_SIZE
+                || fold.readInt() != FoldedIndex.MAGIC
+                || fold.readInt() > FoldedIndex.VERSION
+                || fold.readInt() != length
+                || !FoldedIndex.canFold(length, foldLength = fold.readInt())
+                || fold.readInt() != counts[nBins - 1]) {
+                fold.close();
+                if (ids != null)
+                    ids.close();
+                raf.close();
+                throw new IOException("The folded index " + FoldedIndex.of(f) + " does not match the index");
+            }
+            foldChannel = fold.getChannel();
+        }
+
+        SimilarityIndex idx = new SimilarityIndex(counts, channel, offset, length, type, nBlocks, ids, foldChannel, foldLength);
+        idx.deleted = deleted;
+        return idx;
     }
 
 
@@ -1,26 +1,45 @@
 package org.openscience.cdk.nfp;
 
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
 import org.openscience.cdk.exception.InvalidSmilesException;
-import org.openscience.cdk.fingerprint.CircularFingerprinter;
 import org.openscience.cdk.fingerprint.IBitFingerprint;
 import org.openscience.cdk.fingerprint.IFingerprinter;
 import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.silent.SilentChemObjectBuilder;
 import org.openscience.cdk.smiles.SmilesParser;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Calculate the fingerprints for each entry in a SMILES file and output in FPS
- * format.
+ * format, with the '#FPS1' header lines (as written by cdk2fps). The fingerprint
+ * type ({@code -fp}) and length ({@code -length}) can be chosen. The lines are
+ * read in batches ({@code -Dbatch}) that are fingerprinted on a pool of
+ * {@code -Dthreads} workers, each with its own parser and fingerprinter. The
+ * batches are written in the order they were read and only a few are in flight
+ * at once so the reader waits for slow workers.
  *
  * @author John May
  */
@@ -28,57 +47,240 @@ public class SmiToFps {
 
     private static final int TIME_STAMP_INTERVAL = 1250;
 
+    private static final int THREADS = Math.max(1, Integer.getInteger("threads", 1));
+    private static final int BATCH   = Math.max(1, Integer.getInteger("batch", 1000));
+
+    // batches read but not yet written
+    private static final int IN_FLIGHT = 2 * THREADS;
+
+    // marks the end of the input in the queue of batches
+    private static final Future<Batch> END = new FutureTask<Batch>(new Runnable() {
+        @Override public void run() {
+        }
+    }, null);
+
+    // daemon threads, a reader or worker left running after a failure does not keep the JVM alive
+    private static final ThreadFactory DAEMON = new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            Thread thread = Executors.defaultThreadFactory().newThread(r);
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    // the parser and fingerprinter are not thread safe, each worker has its own
+    private static final ThreadLocal<SmilesParser> smipar = new ThreadLocal<SmilesParser>() {
+        @Override protected SmilesParser initialValue() {
+            return new SmilesParser(SilentChemObjectBuilder.getInstance());
+        }
+    };
+
+    // the fingerprint type and length, set before the workers start
+    private static FpType fp;
+    private static int    len;
+
+    private static final ThreadLocal<IFingerprinter> fpr = new ThreadLocal<IFingerprinter>() {
+        @Override protected IFingerprinter initialValue() {
+            return fp.create(len);
+        }
+    };
+
+    private static final OptionSpec<String>  fpSpec;
+    private static final OptionSpec<Integer> lengthSpec;
+    private static final OptionSpec<String>  inputSpec;
+
+    private static final OptionParser optpar = new OptionParser();
+
+    static {
+        fpSpec = optpar.accepts("fp", "Fingerprint type (" + FpType.names() + ")")
+                       .withRequiredArg()
+                       .ofType(String.class)
+                       .defaultsTo("ecfp4");
+        lengthSpec = optpar.accepts("length", "Fingerprint length (bits), MACCS and PubChem have a fixed length")
+                           .withRequiredArg()
+                           .ofType(Integer.class)
+                           .defaultsTo(FpType.DEFAULT_LENGTH);
+        inputSpec = optpar.nonOptions()
+                          .ofType(String.class);
+    }
+
     public static void main(String[] args) throws IOException, InvalidSmilesException {
 
-        if (args.length < 1) {
-            System.err.println("Usage ./smi2fps {input.smi} [{output.smi}]");
+        final OptionSet optset;
+        try {
+            optset = optpar.parse(args);
+        } catch (OptionException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+
+        final List<String> files = inputSpec.values(optset);
+        if (files.isEmpty() || files.size() > 2) {
+            System.err.println("Usage ./smi2fps [-fp {type}] [-length {bits}] {input.smi} [{output.fps}]");
+            return;
+        }
+
+        fp = FpType.of(optset.valueOf(fpSpec));
+        if (fp == null) {
+            System.err.println("Fingerprint type must be one of " + FpType.names());
+            return;
+        }
+        len = fp.length(optset.valueOf(lengthSpec));
+        if (len <= 0) {
+            System.err.println("Fingerprint length must be positive");
             return;
         }
 
-        final String path = args[0];
-        final BufferedWriter bw = args.length > 1
-                            ? new BufferedWriter(new FileWriter(args[1])) :
-                              new BufferedWriter(new OutputStreamWriter(System.out));
+        final String path = files.get(0);
+        final OutputStream out = new BufferedOutputStream(files.size() > 1 ? new FileOutputStream(files.get(1)) : System.out,
+                                                          1 << 16);
 
-        final BufferedReader rdr    = new BufferedReader(new FileReader(path));
-        final SmilesParser   smipar = new SmilesParser(SilentChemObjectBuilder.getInstance());
+        final BufferedReader rdr = new BufferedReader(new FileReader(path));
 
-        // TODO choose fingerprint
-        IFingerprinter fpr = new CircularFingerprinter(CircularFingerprinter.CLASS_ECFP4);
-        final int len = fpr.getSize();
+        out.write(FpsFmt.header(len, fp.type(), "CDK SmiToFps", path).getBytes(StandardCharsets.UTF_8));
+
+        final BlockingQueue<Future<Batch>> queue   = new ArrayBlockingQueue<Future<Batch>>(IN_FLIGHT);
+        final ExecutorService              workers = Executors.newFixedThreadPool(THREADS, DAEMON);
+        final ExecutorService              reading = Executors.newSingleThreadExecutor(DAEMON);
 
         int cnt = 0;
 
         long t0 = System.nanoTime();
-        String line;
-        while ((line = rdr.readLine()) != null) {
-            try {
+        try {
+            Future<?> reader = reading.submit(new Reader(rdr, len, workers, queue));
+
+            // the batches are taken in the order they were read, the ids (and the ticker) are
+            // assigned here so the output does not depend on the number of workers
+            Future<Batch> future;
+            while ((future = queue.take()) != END) {
+                Batch batch = future.get();
+                for (int i = 0; i < batch.size; i++) {
+                    final String line = batch.lines[i];
+                    final String id   = batch.parsed[i] ? suffixedId(line) : null;
 
-                final IAtomContainer container = smipar.parseSmiles(line);
-                final String         id        = suffixedId(line);
-                final BitSet         bitSet    = fpr.getBitFingerprint(container).asBitSet();
+                    if (batch.errors[i] != null) {
+                        System.err.println("[INFO] Skipping " + line + " " + batch.errors[i]);
+                        continue;
+                    }
 
-                StringBuilder sb = new StringBuilder();
-                FpsFmt.writeHex(sb, len, bitSet.toLongArray());
+                    out.write(batch.hex, i * batch.step, batch.step);
+                    out.write('\t');
+                    out.write(id.getBytes(StandardCharsets.UTF_8));
+                    out.write('\n');
 
-                bw.write(sb.toString());
-                bw.write("\t");
-                bw.write(id);
-                bw.newLine();
+                    if (++cnt % TIME_STAMP_INTERVAL == 0)
+                        System.err.print("\r[RUN] processed " + cnt + " compounds, elapsed time " + elapsedTime(t0, System.nanoTime()) + ", " + rate(cnt, t0, System.nanoTime()) + " compounds/s");
+                }
+            }
 
-                if (++cnt % TIME_STAMP_INTERVAL == 0)
-                    System.err.print("\r[RUN] processed " + cnt+ " compounds, elapsed time " + elapsedTime(t0, System.nanoTime()));
+            // rethrow a read error
+            reader.get();
 
-            } catch (Exception e) {
-                System.err.println("[INFO] Skipping " + line + " " + e.getMessage());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            reading.shutdownNow();
+            workers.shutdownNow();
+            try {
+                rdr.close();
+            } finally {
+                out.close();
             }
         }
         long t1 = System.nanoTime();
 
-        System.err.println("\r[FINISHED] processed " + cnt+ " compounds, elapsed time " + elapsedTime(t0, t1));
+        System.err.println("\r[FINISHED] processed " + cnt + " compounds, elapsed time " + elapsedTime(t0, t1) + ", " + rate(cnt, t0, t1) + " compounds/s");
+    }
+
+    /**
+     * Reads the lines in batches and submits them to the workers, the pending batches are
+     * added to the queue in the order they were read. Adding to the queue blocks when there
+     * are already {@link #IN_FLIGHT} batches. If the reader is interrupted (the main thread
+     * has failed and stopped taking batches) the end is only offered, a full queue would
+     * otherwise block it forever.
+     */
+    private static final class Reader implements Callable<Void> {
+
+        private final BufferedReader               rdr;
+        private final int                          len;
+        private final ExecutorService              workers;
+        private final BlockingQueue<Future<Batch>> queue;
+
+        private Reader(BufferedReader rdr, int len, ExecutorService workers, BlockingQueue<Future<Batch>> queue) {
+            this.rdr = rdr;
+            this.len = len;
+            this.workers = workers;
+            this.queue = queue;
+        }
 
-        rdr.close();
-        bw.close();
+        @Override public Void call() throws IOException, InterruptedException {
+            boolean interrupted = false;
+            try {
+                Batch batch = new Batch(len);
+                String line;
+                while ((line = rdr.readLine()) != null) {
+                    batch.lines[batch.size++] = line;
+                    if (batch.size == BATCH) {
+                        queue.put(workers.submit(batch));
+                        batch = new Batch(len);
+                    }
+                }
+                if (batch.size > 0)
+                    queue.put(workers.submit(batch));
+            } catch (InterruptedException e) {
+                interrupted = true;
+                throw e;
+            } finally {
+                if (interrupted || Thread.currentThread().isInterrupted())
+                    queue.offer(END);
+                else
+                    queue.put(END);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A batch of lines, once called the hex of each fingerprint is encoded into the same bytes.
+     * A line that could not be parsed or fingerprinted has an error message, this includes
+     * errors (e.g. a stack overflow) from the toolkit on a pathological input.
+     */
+    private static final class Batch implements Callable<Batch> {
+
+        private final String[]  lines  = new String[BATCH];
+        private final boolean[] parsed = new boolean[BATCH];
+        private final String[]  errors = new String[BATCH];
+        private final int       len, step;
+        private byte[]          hex;
+        private int             size;
+
+        private Batch(int len) {
+            this.len = len;
+            this.step = FpsFmt.hexLength(len);
+        }
+
+        @Override public Batch call() {
+            final SmilesParser   smipar = SmiToFps.smipar.get();
+            final IFingerprinter fpr    = SmiToFps.fpr.get();
+            hex = new byte[size * step];
+            for (int i = 0; i < size; i++) {
+                try {
+                    final IAtomContainer container = smipar.parseSmiles(lines[i]);
+                    parsed[i] = true;
+                    final BitSet bitSet = fpr.getBitFingerprint(container).asBitSet();
+                    FpsFmt.writeHex(hex, i * step, len, bitSet.toLongArray());
+                } catch (Exception e) {
+                    errors[i] = String.valueOf(e.getMessage());
+                } catch (Throwable e) {
+                    errors[i] = e.toString();
+                }
+            }
+            return this;
+        }
     }
 
     // provides a local id for entries if one is not provided
@@ -103,4 +305,8 @@ public class SmiToFps {
         long sec = TimeUnit.NANOSECONDS.toSeconds(dt);
         return String.format("%dm%ds", min, sec);
     }
+
+    private static long rate(int cnt, long t0, long t1) {
+        return Math.round(cnt / Math.max(1e-9, (t1 - t0) / 1e9));
+    }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The entries of an index that have been deleted, stored alongside the index (e.g.
+ * 'chembl.idx.del') as a bitmap with a bit for each entry. The file (big-endian) has a 20 byte
+ * header: the magic number, version, number of entries, number deleted and a stamp of the
+ * index bins (version 2), then the words of the bitmap. The stamp rejects the tombstones of
+ * an older index that was rebuilt at the same path. The index itself is never changed, a search skips the deleted entries and they are
+ * dropped when the segments of a {@link SegmentedIndex} are compacted.
+ *
+ * @author John May
+ */
+final class Tombstones {
+
+    static final int MAGIC   = 0x4e465054; // 'NFPT'
+    static final int VERSION = 2;
+
+    private Tombstones() {
+    }
+
+    /**
+     * The deleted entries stored alongside an index, e.g. 'chembl.idx.del' for 'chembl.idx'.
+     *
+     * @param idx the index file
+     * @return the tombstone file
+     */
+    static File of(File idx) {
+        return new File(idx.getPath() + ".del");
+    }
+
+    /**
+     * A stamp of the index the tombstones belong to, from the start of each popcount bin. A
+     * rebuilt index with the same number of entries almost always has different bins.
+     *
+     * @param counts the bins of the index, counts[i] is the first entry with popcount 'i'
+     * @return the stamp
+     */
+    static int stamp(int[] counts) {
+        return Arrays.hashCode(counts);
+    }
+
+    /**
+     * Load the bitmap of deleted entries.
+     *
+     * @param f      the file
+     * @param counts the bins of the index, the last is the number of entries
+     * @return the bitmap
+     * @throws IOException the file could not be read or does not match the index
+     */
+    static long[] load(File f, int[] counts) throws IOException {
+        int nEntries = counts[counts.length - 1];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException(f + " is not a tombstone file");
+            int version = in.readInt();
+            if (version > VERSION)
+                throw new IOException("Unsupported tombstone version " + version + " in " + f);
+            if (in.readInt() != nEntries)
+                throw new IOException("The tombstones " + f + " do not match the index");
+            in.readInt();
+            if (version >= 2 && in.readInt() != stamp(counts))
+                throw new IOException("The tombstones " + f + " do not match the index");
+            long[] bits = new long[(nEntries + 63) / 64];
+            for (int i = 0; i < bits.length; i++)
+                bits[i] = in.readLong();
+            return bits;
+        }
+    }
+
+    /**
+     * Write the bitmap of deleted entries, the file is replaced once it is written.
+     *
+     * @param f      the file
+     * @param bits   the bitmap
+     * @param counts the bins of the index, the last is the number of entries
+     * @throws IOException the file could not be written
+     */
+    static void write(File f, long[] bits, int[] counts) throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(counts[counts.length - 1]);
+            out.writeInt(count(bits));
+            out.writeInt(stamp(counts));
+            for (long word : bits)
+                out.writeLong(word);
+        }
+        if (f.exists() && !f.delete() || !tmp.renameTo(f))
+            throw new IOException("Could not replace " + f);
+    }
+
+    static int count(long[] bits) {
+        int n = 0;
+        if (bits != null) {
+            for (long word : bits)
+                n += Long.bitCount(word);
+        }
+        return n;
+    }
+}
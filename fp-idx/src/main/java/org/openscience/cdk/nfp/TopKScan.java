@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A top-k search that splits the bins of one or more indexes into slices, used for the parallel
+ * search of an index and the search of the shards of a {@link ShardedIndex}. The bins are visited
+ * outwards from the query popcount, the same bin of every index before moving on, and large bins
+ * are split into slices of {@link SimilarityIndex#SLICE_SIZE} entries. Each worker claims slices
+ * in order from a shared cursor, keeps its own heap and publishes its k-th best score (see {@link
+ * KthBest}) so every worker can skip the slices that can not have a hit. A worker only creates a
+ * scanner for the indexes it visits. The heaps of the workers are merged at the end.
+ *
+ * @author John May
+ */
+final class TopKScan implements Callable<MinBinaryHeap> {
+
+    private final SimilarityIndex[]      indexes;
+    private final int[]                  offsets;
+    private final int[][]                counts;
+    private final BinaryFingerprint      query;
+    private final int                    queryCardinality;
+    private final int                    length;
+    private final int                    k;
+    private final Measure                measure;
+    private final int[]                  slices;
+    private final AtomicInteger          cursor  = new AtomicInteger();
+    private final AtomicLong             scored  = new AtomicLong();
+    private final AtomicLong             pruned  = new AtomicLong();
+    private final KthBest                kthBest = new KthBest();
+    private final SimilarityIndex.Bins[] bins;
+
+    private TopKScan(SimilarityIndex[] indexes, int[] offsets, BinaryFingerprint query, int k, Measure measure) {
+        this.indexes = indexes;
+        this.offsets = offsets;
+        this.query = query;
+        this.queryCardinality = query.cardinality();
+        this.length = indexes[0].length();
+        this.k = k;
+        this.measure = measure;
+        this.counts = new int[indexes.length][];
+        this.bins = new SimilarityIndex.Bins[indexes.length];
+        int nBins = 0;
+        for (int s = 0; s < indexes.length; s++) {
+            counts[s] = indexes[s].counts();
+            bins[s] = indexes[s].bins();
+            nBins = Math.max(nBins, counts[s].length - 1);
+        }
+        final int[] ordering = SimilarityIndex.binOrder(queryCardinality, nBins);
+
+        // split the bins of each index into slices (index, popcount and start offset)
+        int nSlices = 0;
+        for (int popcount : ordering) {
+            for (int[] bounds : counts) {
+                if (popcount + 1 < bounds.length)
+                    nSlices += (binSize(bounds, popcount) + SimilarityIndex.SLICE_SIZE - 1) / SimilarityIndex.SLICE_SIZE;
+            }
+        }
+        this.slices = new int[3 * nSlices];
+        int n = 0;
+        for (int popcount : ordering) {
+            for (int s = 0; s < indexes.length; s++) {
+                if (popcount + 1 >= counts[s].length)
+                    continue;
+                for (int start = 0; start < binSize(counts[s], popcount); start += SimilarityIndex.SLICE_SIZE) {
+                    slices[n++] = s;
+                    slices[n++] = popcount;
+                    slices[n++] = start;
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the 'k' best hits of the indexes, the entries of each index are numbered from its
+     * offset. The indexes must be held open (acquired) by the caller.
+     *
+     * @param indexes the indexes, with fingerprints of the same length
+     * @param offsets the number of the first entry of each index
+     * @param query   query fingerprint
+     * @param k       number of hits to find
+     * @param measure similarity measure
+     * @param emitter receives the hits, best first
+     * @param pool    the pool to run the search on, null to search on this thread
+     * @return what the search did
+     */
+    static SearchStats search(SimilarityIndex[] indexes, int[] offsets, BinaryFingerprint query, int k,
+                              Measure measure, ResultPairEmitter emitter, ForkJoinPool pool) {
+
+        final long     t0   = System.nanoTime();
+        final TopKScan scan = new TopKScan(indexes, offsets, query, k, measure);
+
+        MinBinaryHeap heap;
+        if (pool == null) {
+            heap = scan.call();
+        } else {
+            int                           nWorkers = Math.max(1, Math.min(pool.getParallelism(), scan.slices.length / 3));
+            List<Callable<MinBinaryHeap>> workers  = new ArrayList<Callable<MinBinaryHeap>>(nWorkers);
+            for (int i = 0; i < nWorkers; i++)
+                workers.add(scan);
+            heap = new MinBinaryHeap(k);
+            heap.addAll(ShardedIndex.results(pool, workers));
+        }
+
+        int nHits = heap.sort();
+        for (int i = 1; i <= nHits; i++)
+            emitter.emit(heap.key[i], heap.val[i]);
+
+        int nVisited = 0;
+        for (SimilarityIndex.Bins visited : scan.bins)
+            nVisited += visited.visited();
+        return new SearchStats(nVisited, scan.scored.get(), scan.pruned.get(), System.nanoTime() - t0);
+    }
+
+    private static int binSize(int[] counts, int popcount) {
+        return counts[popcount + 1] - counts[popcount];
+    }
+
+    /**
+     * Claim and scan slices until there are none left.
+     *
+     * @return the heap of this worker
+     */
+    @Override public MinBinaryHeap call() {
+
+        MinBinaryHeap             heap     = new MinBinaryHeap(k);
+        SimilarityIndex.Scanner[] scanners = new SimilarityIndex.Scanner[indexes.length];
+
+        int slice;
+        while ((slice = 3 * cursor.getAndIncrement()) < slices.length) {
+
+            final int s        = slices[slice];
+            final int popcount = slices[slice + 1];
+            final int start    = slices[slice + 2];
+
+            double kthBest = this.kthBest.get();
+            if (!this.kthBest.admits(measure.bound(queryCardinality, popcount, length)))
+                continue;
+
+            if (scanners[s] == null)
+                scanners[s] = indexes[s].scanner(query, measure, offsets[s], bins[s]);
+
+            int end = Math.min(binSize(counts[s], popcount), start + SimilarityIndex.SLICE_SIZE);
+            scanners[s].scan(popcount, start, end, kthBest, heap, null);
+
+            this.kthBest.publish(heap.threshold());
+        }
+
+        for (SimilarityIndex.Scanner scanner : scanners) {
+            if (scanner != null) {
+                scored.addAndGet(scanner.scored);
+                pruned.addAndGet(scanner.pruned);
+            }
+        }
+
+        return heap;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+package org.openscience.cdk.nfp;
+
+/**
+ * The Tversky index, both / (alpha * a + beta * b + both), where 'a' are the bits only in the
+ * query and 'b' the bits only in the target. Weights of 1,1 give Tanimoto and 0.5,0.5 Dice.
+ * With the weights 1,0 a target scores 1 only if it has every bit of the query set, see
+ * {@link #SUBSTRUCTURE}.
+ *
+ * @author John May
+ */
+final class Tversky implements Measure {
+
+    /** Fraction of the query bits the target has set, 1 if the target has them all. */
+    static final Tversky SUBSTRUCTURE = new Tversky(1, 0);
+
+    private final double alpha, beta;
+
+    Tversky(double alpha, double beta) {
+        if (alpha < 0 || beta < 0)
+            throw new IllegalArgumentException("Tversky weights must not be negative");
+        this.alpha = alpha;
+        this.beta = beta;
+    }
+
+    @Override public double compute(int a, int b, int both, int neither) {
+        return both / (alpha * a + beta * b + both);
+    }
+
+    // increases with the bits in common which is at most min(q,t)
+    @Override public double bound(int q, int t, int n) {
+        int both = Math.min(q, t);
+        return both / (alpha * (q - both) + beta * (t - both) + both);
+    }
+
+    @Override public int[] range(int q, double threshold, int n) {
+        double lo = threshold * alpha * q / (1 - threshold + threshold * alpha);
+        double hi = beta == 0 ? n : q + q * (1 - threshold) / (threshold * beta);
+        return Similarity.fit(this, q, threshold, n, lo, hi);
+    }
+
+    @Override public String toString() {
+        return "Tversky(" + alpha + "," + beta + ")";
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Releases the memory of a mapped buffer straight away rather than when it is garbage collected,
+ * so the mappings of a closed index do not hold on to address space and the file can be deleted
+ * (e.g. after compaction) without waiting for a collection. There is no public API before the
+ * foreign memory API (Java 22), on Java 9+ the buffer is released with {@code
+ * sun.misc.Unsafe.invokeCleaner} and on Java 7/8 with the cleaner of the buffer. If neither can
+ * be used the buffer is left to the garbage collector.
+ * <br>
+ * A released buffer must never be read again, reading it crashes the JVM. The callers make sure
+ * nothing is still reading the buffer, see {@link SimilarityIndex#close()}.
+ *
+ * @author John May
+ */
+final class Unmapper {
+
+    // Java 9+, the unsafe instance and its invokeCleaner(ByteBuffer) method, null if not available
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe        = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> cls   = Class.forName("sun.misc.Unsafe");
+            Field    field = cls.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            invokeCleaner = cls.getMethod("invokeCleaner", ByteBuffer.class);
+            unsafe = field.get(null);
+        } catch (Exception e) {
+            // Java 7/8 (no invokeCleaner) or unsafe is not accessible
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private Unmapper() {
+    }
+
+    /**
+     * Release the memory of a mapped buffer, the buffer must have been returned by {@link
+     * java.nio.channels.FileChannel#map} (not a duplicate or slice).
+     *
+     * @param buffer the buffer
+     * @return the buffer was released, false if it is left to the garbage collector
+     */
+    static boolean unmap(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect())
+            return false;
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return true;
+            }
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner == null)
+                return false;
+            cleaner.getClass().getMethod("clean").invoke(cleaner);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
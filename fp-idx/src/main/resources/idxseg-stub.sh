@@ -0,0 +1,9 @@
+#!/bin/sh
+MYSELF=`which "$0" 2>/dev/null`
+[ $? -gt 0 -a -f "$0" ] && MYSELF="./$0"
+java=java
+if test -n "$JAVA_HOME"; then
+    java="$JAVA_HOME/bin/java"
+fi
+exec "$java" $java_args -cp $MYSELF org.openscience.cdk.nfp.IdxSegments "$@"
+exit 1
\ No newline at end of file
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author John May
+ */
+public class BinCacheTest {
+
+    private static final int  N_BINS = 20;
+    private static final long BUDGET = 8 << 10;
+
+    // a file of 8 byte records, each holds its own number, bin 'i' has 64 * (i % 7 + 1)
+    // records and the last bin is larger than the budget
+    private static int[] bins(File f) throws IOException {
+        int[] counts = new int[N_BINS + 1];
+        for (int i = 0; i < N_BINS; i++)
+            counts[i + 1] = counts[i] + (i == N_BINS - 1 ? 2000 : 64 * (i % 7 + 1));
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+            for (long i = 0; i < counts[N_BINS]; i++)
+                out.writeLong(i);
+        }
+        return counts;
+    }
+
+    // most requests are for a few bins, as with queries near the middle of the popcount range
+    @Test public void mixedLoad() throws Exception {
+        File f = File.createTempFile("bins", ".dat");
+        f.deleteOnExit();
+        final int[] counts = bins(f);
+        try (FileChannel channel = new FileInputStream(f).getChannel()) {
+            final BinCache  cache = new BinCache(channel, counts, 0, 8, BUDGET);
+            ExecutorService pool  = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+                for (int t = 0; t < 4; t++) {
+                    final Random rnd = new Random(t);
+                    results.add(pool.submit(new Callable<Integer>() {
+                        @Override public Integer call() throws IOException {
+                            for (int i = 0; i < 5000; i++) {
+                                int        pop    = rnd.nextInt(4) != 0 ? 8 + rnd.nextInt(4) : rnd.nextInt(N_BINS);
+                                ByteBuffer buffer = cache.get(pop);
+                                assertEquals((counts[pop + 1] - counts[pop]) * 8, buffer.capacity());
+                                assertEquals(counts[pop], buffer.getLong(0));
+                            }
+                            return 5000;
+                        }
+                    }));
+                }
+                int requests = 0;
+                for (Future<Integer> result : results)
+                    requests += result.get();
+
+                assertEquals(requests, cache.hits() + cache.misses());
+                assertTrue(cache.bytes() <= BUDGET);
+                assertTrue(cache.evictions() <= cache.misses());
+
+                // the hot bins are held, a bin larger than the budget never is
+                long hits = cache.hits();
+                for (int pop = 8; pop < 12; pop++)
+                    cache.get(pop);
+                assertEquals(hits + 4, cache.hits());
+                long misses = cache.misses();
+                cache.get(N_BINS - 1);
+                cache.get(N_BINS - 1);
+                assertEquals(misses + 2, cache.misses());
+                assertTrue(cache.bytes() <= BUDGET);
+            } finally {
+                pool.shutdown();
+                cache.unmap();
+            }
+        }
+    }
+
+    // a scan over every bin does not flush out the bins requested more often
+    @Test public void scanResistant() throws IOException {
+        File f = File.createTempFile("bins", ".dat");
+        f.deleteOnExit();
+        int[] counts = bins(f);
+        try (FileChannel channel = new FileInputStream(f).getChannel()) {
+            BinCache cache = new BinCache(channel, counts, 0, 8, BUDGET);
+            for (int i = 0; i < 10; i++)
+                cache.get(9);
+            for (int pop = 0; pop < N_BINS; pop++)
+                cache.get(pop);
+            long hits = cache.hits();
+            cache.get(9);
+            assertEquals(hits + 1, cache.hits());
+            assertTrue(cache.bytes() <= BUDGET);
+            cache.unmap();
+            assertEquals(0, cache.bytes());
+        }
+    }
+}
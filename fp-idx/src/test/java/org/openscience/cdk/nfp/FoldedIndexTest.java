@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The folded index only prunes entries that can not be hits, the searches find the same hits
+ * with and without it.
+ *
+ * @author John May
+ */
+public class FoldedIndexTest {
+
+    private static final int LENGTH = 1024;
+    private static final int FOLD   = 256;
+
+    @Test public void sameHits() throws IOException {
+        Random                  rnd = new Random(29);
+        List<BinaryFingerprint> fps = new ArrayList<BinaryFingerprint>();
+        for (int i = 0; i < 20000; i++) {
+            BinaryFingerprint fp  = new BinaryFingerprint(LENGTH);
+            int               pop = 20 + rnd.nextInt(50);
+            while (fp.cardinality() < pop)
+                fp.add(rnd.nextInt(LENGTH));
+            fps.add(fp);
+        }
+        File fpsFile = File.createTempFile("fold", ".fps");
+        fpsFile.deleteOnExit();
+        write(fpsFile, fps);
+
+        File plain = File.createTempFile("fold", ".idx"), folded = File.createTempFile("fold", ".idx");
+        plain.deleteOnExit();
+        folded.deleteOnExit();
+        for (File f : new File[]{plain, folded}) {
+            new File(f + ".id").deleteOnExit();
+            IdTable.of(f).deleteOnExit();
+        }
+        FoldedIndex.of(folded).deleteOnExit();
+        FpsToIdx.build(fpsFile.getPath(), plain.getPath(), 1, 64 << 20, 0);
+        FpsToIdx.build(fpsFile.getPath(), folded.getPath(), 1, 64 << 20, FOLD);
+        assertTrue(FoldedIndex.of(folded).exists());
+
+        SimilarityIndex a    = SimilarityIndex.load(plain);
+        SimilarityIndex b    = SimilarityIndex.load(folded);
+        ForkJoinPool    pool = new ForkJoinPool(4);
+        try {
+            assertEquals(0, a.foldLength());
+            assertEquals(FOLD, b.foldLength());
+            // entries pruned without and with the folded fingerprints
+            long prunedA = 0, prunedB = 0;
+            for (int q = 0; q < 30; q++) {
+                BinaryFingerprint query = mutate(rnd, fps.get(rnd.nextInt(fps.size())));
+                for (double threshold : new double[]{0.3, 0.5, 0.8}) {
+                    Hits x = new Hits(), y = new Hits();
+                    prunedA += a.findAll(query, threshold, Similarity.Tanimoto, x).pruned;
+                    prunedB += b.findAll(query, threshold, Similarity.Tanimoto, y).pruned;
+                    assertEquals(x.hits, y.hits);
+                }
+                Hits x = new Hits(), y = new Hits(), z = new Hits();
+                a.top(query, 25, Similarity.Tanimoto, x);
+                b.top(query, 25, Similarity.Tanimoto, y);
+                b.top(query, 25, Similarity.Tanimoto, z, pool);
+                assertEquals(x.hits, y.hits);
+                assertEquals(x.hits, z.hits);
+            }
+            assertTrue(prunedB > prunedA);
+        } finally {
+            pool.shutdown();
+            a.close();
+            b.close();
+        }
+    }
+
+    private static void write(File f, List<BinaryFingerprint> fps) throws IOException {
+        try (OutputStream out = new FileOutputStream(f)) {
+            out.write(FpsFmt.header(LENGTH, "test", "FoldedIndexTest", null).getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < fps.size(); i++) {
+                sb.setLength(0);
+                FpsFmt.writeHex(sb, LENGTH, fps.get(i).words);
+                sb.append('\t').append(i).append('\n');
+                out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    // a query close to an entry, so there are hits at the higher thresholds
+    private static BinaryFingerprint mutate(Random rnd, BinaryFingerprint fp) {
+        long[] words = fp.words.clone();
+        for (int i = 0; i < 1 + rnd.nextInt(20); i++) {
+            int bit = rnd.nextInt(LENGTH);
+            words[bit >>> 6] ^= 1L << bit;
+        }
+        return BinaryFingerprint.valueOf(words, LENGTH);
+    }
+
+    private static final class Hits implements ResultPairEmitter {
+
+        private final List<String> hits = new ArrayList<String>();
+
+        @Override public void emit(int id, double score) {
+            hits.add(id + ":" + score);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hex encoding and decoding of FPS fingerprints and the FPS header.
+ *
+ * @author John May
+ */
+public class FpsFmtTest {
+
+    // lengths with whole words, partial words and partial bytes
+    private static final int[] LENGTHS = {8, 12, 32, 64, 166, 881, 1024};
+
+    @Test public void roundTripString() {
+        Random rnd = new Random(1);
+        for (int len : LENGTHS) {
+            for (int i = 0; i < 100; i++) {
+                long[]        words = random(rnd, len);
+                StringBuilder sb    = new StringBuilder();
+                FpsFmt.writeHex(sb, len, words);
+                assertEquals(FpsFmt.hexLength(len), sb.length());
+                long[] decoded = new long[words.length];
+                assertTrue(FpsFmt.readHex(sb.toString(), len, decoded));
+                assertArrayEquals(words, decoded);
+            }
+        }
+    }
+
+    @Test public void roundTripBuffer() {
+        Random rnd = new Random(2);
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            for (int len : LENGTHS) {
+                long[]     words = random(rnd, len);
+                ByteBuffer buf   = ByteBuffer.allocate(FpsFmt.hexLength(len)).order(order);
+                FpsFmt.writeHex(buf, len, words);
+                buf.flip();
+                long[] decoded = new long[words.length];
+                assertTrue(FpsFmt.readHex(buf, len, decoded));
+                assertArrayEquals(words, decoded);
+                assertFalse(buf.hasRemaining());
+            }
+        }
+    }
+
+    @Test public void byteArrayMatchesString() {
+        Random rnd = new Random(3);
+        for (int len : LENGTHS) {
+            long[]        words = random(rnd, len);
+            StringBuilder sb    = new StringBuilder();
+            FpsFmt.writeHex(sb, len, words);
+            byte[] dest = new byte[FpsFmt.hexLength(len) + 2];
+            assertEquals(dest.length - 1, FpsFmt.writeHex(dest, 1, len, words));
+            assertEquals(sb.toString(), new String(dest, 1, dest.length - 2, StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test public void upperCase() {
+        long[] words = new long[1];
+        assertTrue(FpsFmt.readHex("DEADBEEF01234567", 64, words));
+        long[] expected = new long[1];
+        assertTrue(FpsFmt.readHex("deadbeef01234567", 64, expected));
+        assertArrayEquals(expected, words);
+    }
+
+    @Test public void rejectInvalid() {
+        long[] words = new long[1];
+        assertFalse(FpsFmt.readHex("deadbeef0123456g", 64, words));
+        assertFalse(FpsFmt.readHex("dead beef0123456", 64, words));
+        assertFalse(FpsFmt.readHex("deadbeef", 64, words));
+        assertFalse(FpsFmt.readHex("d:", 8, words));
+        assertFalse(readHex(ascii("deadbeef0123456g"), 64, words));
+        assertFalse(readHex(ascii("deadbeef01234567".substring(2)), 64, words));
+        assertFalse(readHex(ascii("zz"), 8, words));
+    }
+
+    // non-ASCII bytes and characters must not be masked onto a hex digit
+    @Test public void rejectNonAscii() throws IOException {
+        long[] words = new long[1];
+        assertFalse(FpsFmt.readHex("deadbeef0123456\u00b0", 64, words));
+        assertFalse(FpsFmt.readHex("\u0130f", 8, words));
+
+        byte[] hex = ascii("deadbeef01234567");
+        for (int i = 0; i < hex.length; i++) {
+            byte[] bad = hex.clone();
+            bad[i] = (byte) (bad[i] | 0x80);
+            assertFalse(readHex(bad, 64, words));
+        }
+
+        // the length is taken from the first fingerprint, a non-ASCII byte ends it
+        assertEquals(16, FpsFmt.readHeader(ByteBuffer.wrap(ascii("0f0f\u00b0\t1\n"))).numBits);
+    }
+
+    @Test public void header() throws IOException {
+        String header = FpsFmt.header(166, "cdk/maccs", "test/1.0", "input.smi");
+        byte[] file   = ascii(header + "00112233445566778899aabbccddeeff001122334455\tid\n");
+
+        FpsFmt.Header h = FpsFmt.readHeader(ByteBuffer.wrap(file));
+        assertEquals(166, h.numBits);
+        assertEquals("cdk/maccs", h.type);
+        assertEquals(6, h.nLines);
+        assertEquals(header.length(), h.size);
+    }
+
+    @Test public void headerLengthFromFingerprint() throws IOException {
+        FpsFmt.Header h = FpsFmt.readHeader(ByteBuffer.wrap(ascii("#FPS1\n0123456789abcdef\tid\n")));
+        assertEquals(64, h.numBits);
+        assertEquals("", h.type);
+        assertEquals(1, h.nLines);
+        assertEquals(6, h.size);
+    }
+
+    @Test(expected = IOException.class)
+    public void headerInvalidLength() throws IOException {
+        FpsFmt.readHeader(ByteBuffer.wrap(ascii("#FPS1\n#num_bits=x\n")));
+    }
+
+    @Test(expected = IOException.class)
+    public void headerNoLength() throws IOException {
+        FpsFmt.readHeader(ByteBuffer.wrap(ascii("#FPS1\n\tid\n")));
+    }
+
+    private static boolean readHex(byte[] hex, int len, long[] words) {
+        return FpsFmt.readHex(ByteBuffer.wrap(hex), len, words);
+    }
+
+    private static byte[] ascii(String str) {
+        return str.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // the unused bits of the last word are clear
+    private static long[] random(Random rnd, int len) {
+        long[] words = new long[BinaryFingerprint.words(len)];
+        for (int i = 0; i < words.length; i++)
+            words[i] = rnd.nextLong();
+        if (len % 64 != 0)
+            words[words.length - 1] &= (1L << len % 64) - 1;
+        return words;
+    }
+}
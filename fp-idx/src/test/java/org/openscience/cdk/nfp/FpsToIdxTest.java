@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The index built from an FPS file does not depend on the number of threads (regions parsed in
+ * parallel) or the buffer size (how often the bins and ids are spilled), and matches the index
+ * built in memory.
+ *
+ * @author John May
+ */
+public class FpsToIdxTest {
+
+    private static final int LENGTH = 1024;
+
+    // a file large enough to be split into several regions when built with several threads,
+    // some fingerprints are duplicated and some ids are multi-byte
+    private static List<BinaryFingerprint> write(File fps, int n) throws IOException {
+        Random                  rnd = new Random(11);
+        List<BinaryFingerprint> fpl = new ArrayList<BinaryFingerprint>(n);
+        try (OutputStream out = new FileOutputStream(fps)) {
+            out.write(FpsFmt.header(LENGTH, "test", "FpsToIdxTest", null).getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < n; i++) {
+                // some duplicates
+                BinaryFingerprint fp = i % 10 == 9 ? fpl.get(rnd.nextInt(i)) : random(rnd);
+                fpl.add(fp);
+                sb.setLength(0);
+                FpsFmt.writeHex(sb, LENGTH, fp.words);
+                sb.append('\t').append("mol").append(i).append(i % 7 == 0 ? "-\u00e9" : "").append('\n');
+                out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        assertTrue(fps.length() > 4 << 20);
+        return fpl;
+    }
+
+    private static BinaryFingerprint random(Random rnd) {
+        BinaryFingerprint fp  = new BinaryFingerprint(LENGTH);
+        int               pop = 10 + rnd.nextInt(70);
+        while (fp.cardinality() < pop)
+            fp.add(rnd.nextInt(LENGTH));
+        return fp;
+    }
+
+    private static File tmp(String suffix) throws IOException {
+        File f = File.createTempFile("mkidx", suffix);
+        f.deleteOnExit();
+        return f;
+    }
+
+    private static void delete(File idx) {
+        for (File f : new File[]{idx, new File(idx + ".id"), IdTable.of(idx), FoldedIndex.of(idx)})
+            f.delete();
+    }
+
+    private static void assertSameFile(File expected, File actual) throws IOException {
+        assertTrue(actual + " was not written", actual.exists());
+        assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath()));
+    }
+
+    private static void assertSameIndex(File expected, File actual) throws IOException {
+        assertSameFile(expected, actual);
+        assertSameFile(new File(expected + ".id"), new File(actual + ".id"));
+        assertSameFile(IdTable.of(expected), IdTable.of(actual));
+    }
+
+    @Test public void buffer() throws IOException {
+        File fps = tmp(".fps");
+        write(fps, 20000);
+        File large = tmp(".idx"), spilled = tmp(".idx");
+        try {
+            FpsToIdx.build(fps.getPath(), large.getPath(), 1, 256 << 20, 0);
+            FpsToIdx.build(fps.getPath(), spilled.getPath(), 1, 4096, 0);
+            assertSameIndex(large, spilled);
+        } finally {
+            delete(large);
+            delete(spilled);
+        }
+    }
+
+    @Test public void threads() throws IOException {
+        File fps = tmp(".fps");
+        write(fps, 20000);
+        File serial = tmp(".idx"), parallel = tmp(".idx"), spilled = tmp(".idx");
+        try {
+            FpsToIdx.build(fps.getPath(), serial.getPath(), 1, 256 << 20, 0);
+            FpsToIdx.build(fps.getPath(), parallel.getPath(), 4, 256 << 20, 0);
+            FpsToIdx.build(fps.getPath(), spilled.getPath(), 4, 4096, 0);
+            assertSameIndex(serial, parallel);
+            assertSameIndex(serial, spilled);
+        } finally {
+            delete(serial);
+            delete(parallel);
+            delete(spilled);
+        }
+    }
+
+    @Test public void folded() throws IOException {
+        File fps = tmp(".fps");
+        write(fps, 20000);
+        File serial = tmp(".idx"), parallel = tmp(".idx");
+        try {
+            FpsToIdx.build(fps.getPath(), serial.getPath(), 1, 256 << 20, 256);
+            FpsToIdx.build(fps.getPath(), parallel.getPath(), 3, 8192, 256);
+            assertSameIndex(serial, parallel);
+            assertSameFile(FoldedIndex.of(serial), FoldedIndex.of(parallel));
+        } finally {
+            delete(serial);
+            delete(parallel);
+        }
+    }
+
+    // the same fingerprints (and order) as the index built in memory
+    @Test public void inMemory() throws IOException {
+        File                    fps    = tmp(".fps");
+        List<BinaryFingerprint> fpl    = write(fps, 20000);
+        File                    built  = tmp(".idx"), sorted = tmp(".idx");
+        try {
+            FpsToIdx.build(fps.getPath(), built.getPath(), 4, 4096, 0);
+            FingerprintSort.index(fpl, LENGTH, "test", sorted);
+            assertSameFile(sorted, built);
+        } finally {
+            delete(built);
+            delete(sorted);
+        }
+    }
+}
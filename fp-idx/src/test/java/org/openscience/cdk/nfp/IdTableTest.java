@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author John May
+ */
+public class IdTableTest {
+
+    private static final String[] NAMES = {"CHEMBL25", "", "caf\u00e9ine", "\u4e2d\u6587", "\ud83d\ude00 smiley",
+                                           "a"};
+
+    private static List<String> ids(int n, boolean huge) {
+        Random       rnd = new Random(23);
+        List<String> ids = new ArrayList<String>(n);
+        for (int i = 0; i < n; i++) {
+            StringBuilder sb = new StringBuilder(NAMES[i % NAMES.length]);
+            for (int j = rnd.nextInt(40); j > 0; j--)
+                sb.append(j % 5 == 0 ? "\u00df" : Integer.toString(j));
+            ids.add(sb.toString());
+        }
+        // longer than the writer's buffer
+        if (huge) {
+            StringBuilder sb = new StringBuilder();
+            while (sb.length() < 70000)
+                sb.append("\u00e9t\u00e9-");
+            ids.set(n / 2, sb.toString());
+        }
+        return ids;
+    }
+
+    private static File write(List<String> ids) throws IOException {
+        File f = File.createTempFile("ids", ".ids");
+        f.deleteOnExit();
+        try (IdTable.Writer writer = new IdTable.Writer(f, ids.size())) {
+            for (String id : ids) {
+                byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+                writer.add(bytes, 0, bytes.length);
+            }
+        }
+        return f;
+    }
+
+    @Test public void roundTrip() throws IOException {
+        List<String> ids = ids(5000, true);
+        File         f   = write(ids);
+        try (IdTable table = IdTable.load(f)) {
+            check(ids, table);
+        }
+    }
+
+    // small segments (overlapping by the longest id), many ids and offsets straddle a boundary
+    @Test public void segments() throws IOException {
+        List<String> ids = ids(2000, false);
+        File         f   = write(ids);
+        for (long segmentSize : new long[]{61, 64, 1000, 4099}) {
+            try (IdTable table = IdTable.load(f, segmentSize)) {
+                check(ids, table);
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void tooFew() throws IOException {
+        File f = File.createTempFile("ids", ".ids");
+        f.deleteOnExit();
+        try (IdTable.Writer writer = new IdTable.Writer(f, 2)) {
+            writer.add(new byte[]{'a'}, 0, 1);
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void outOfRange() throws IOException {
+        try (IdTable table = IdTable.load(write(ids(10, false)))) {
+            table.get(10);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void notATable() throws IOException {
+        File f = File.createTempFile("ids", ".ids");
+        f.deleteOnExit();
+        IdTable.load(f);
+    }
+
+    private static void check(List<String> ids, IdTable table) {
+        assertEquals(ids.size(), table.size());
+        int maxLength = 0;
+        for (String id : ids)
+            maxLength = Math.max(maxLength, id.getBytes(StandardCharsets.UTF_8).length);
+        assertEquals(maxLength, table.maxLength());
+        byte[] buffer = new byte[1 + table.maxLength()];
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(ids.get(i), table.get(i));
+            int len = table.copy(i, buffer, 1);
+            assertEquals(ids.get(i), new String(buffer, 1, len, StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author John May
+ */
+public class MinBinaryHeapTest {
+
+    @Test public void bestFirst() {
+        MinBinaryHeap heap = new MinBinaryHeap(3);
+        heap.add(0, 0.2);
+        heap.add(1, 0.9);
+        heap.add(2, 0.5);
+        heap.add(3, 0.7);
+        assertEquals(0.5, heap.min(), 0);
+        int[]    keys = new int[3];
+        double[] vals = new double[3];
+        assertEquals(3, heap.drain(keys, vals));
+        assertArrayEquals(new int[]{1, 3, 2}, keys);
+        assertArrayEquals(new double[]{0.9, 0.7, 0.5}, vals, 0);
+    }
+
+    // ties are kept and ordered by the lowest key whatever order they are added in
+    @Test public void tiesByKey() {
+        Integer[] keys = new Integer[100];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = i;
+        List<Integer> order = Arrays.asList(keys);
+        Random        rnd   = new Random(5);
+        for (int r = 0; r < 20; r++) {
+            Collections.shuffle(order, rnd);
+            MinBinaryHeap heap = new MinBinaryHeap(10);
+            for (int key : order)
+                heap.add(key, key % 3 == 0 ? 0.5 : 0.25);
+            int[]    actual = new int[10];
+            double[] vals   = new double[10];
+            heap.drain(actual, vals);
+            assertArrayEquals(new int[]{0, 3, 6, 9, 12, 15, 18, 21, 24, 27}, actual);
+        }
+    }
+
+    // merging the heaps of a split search keeps the same entries as one heap
+    @Test public void addAll() {
+        Random          rnd    = new Random(9);
+        MinBinaryHeap   whole  = new MinBinaryHeap(25);
+        MinBinaryHeap[] splits = {new MinBinaryHeap(25), new MinBinaryHeap(25), new MinBinaryHeap(25)};
+        for (int key = 0; key < 1000; key++) {
+            double val = rnd.nextInt(20) / 20d;
+            whole.add(key, val);
+            splits[rnd.nextInt(splits.length)].add(key, val);
+        }
+        MinBinaryHeap merged = new MinBinaryHeap(25);
+        merged.addAll(Arrays.asList(splits));
+
+        int[]    expKeys = new int[25], keys = new int[25];
+        double[] expVals = new double[25], vals = new double[25];
+        whole.drain(expKeys, expVals);
+        merged.drain(keys, vals);
+        assertArrayEquals(expKeys, keys);
+        assertArrayEquals(expVals, vals, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void empty() {
+        new MinBinaryHeap(0);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Segments added to and deleted from a segmented index, the deleted entries are never hits and
+ * once compacted the index finds the same hits as one built from the live entries.
+ *
+ * @author John May
+ */
+public class SegmentedIndexTest {
+
+    private static final int LENGTH = 1024;
+
+    @Test public void addDeleteCompact() throws IOException {
+        Random rnd = new Random(7);
+        File   dir = Files.createTempDirectory("segments").toFile();
+        try {
+            List<BinaryFingerprint> fps = new ArrayList<BinaryFingerprint>();
+            List<String>            ids = new ArrayList<String>();
+            for (int i = 0; i < 6000; i++) {
+                fps.add(random(rnd));
+                ids.add("mol" + i);
+            }
+
+            File manifest = new File(dir, "lib");
+            SegmentedIndex index = SegmentedIndex.create(manifest, build(dir, "a", fps, ids, 0, 3000));
+            index.add(build(dir, "b", fps, ids, 3000, 4500));
+            index.add(build(dir, "c", fps, ids, 4500, 6000));
+            assertEquals(3, index.segments());
+
+            // entries deleted from every segment
+            Set<String> deleted = new HashSet<String>();
+            for (int i = 0; i < fps.size(); i++) {
+                if (rnd.nextInt(5) == 0)
+                    deleted.add(ids.get(i));
+            }
+            assertEquals(deleted.size(), index.delete(deleted));
+            assertEquals(0, index.delete(deleted));
+
+            List<BinaryFingerprint> queries = new ArrayList<BinaryFingerprint>();
+            for (int q = 0; q < 20; q++)
+                queries.add(mutate(rnd, fps.get(rnd.nextInt(fps.size()))));
+
+            try (SegmentedIndex.View view = index.view()) {
+                assertEquals(deleted.size(), view.nDeleted());
+                for (BinaryFingerprint query : queries) {
+                    for (String id : hits(view, query))
+                        assertFalse(id + " was deleted", deleted.contains(id.substring(0, id.indexOf(':'))));
+                }
+            }
+
+            assertTrue(index.compact());
+            assertEquals(1, index.segments());
+            assertFalse(index.compact());
+
+            // a fresh build of the live entries
+            List<BinaryFingerprint> liveFps = new ArrayList<BinaryFingerprint>();
+            List<String>            liveIds = new ArrayList<String>();
+            for (int i = 0; i < fps.size(); i++) {
+                if (!deleted.contains(ids.get(i))) {
+                    liveFps.add(fps.get(i));
+                    liveIds.add(ids.get(i));
+                }
+            }
+            SegmentedIndex fresh = SegmentedIndex.load(build(dir, "live", liveFps, liveIds, 0, liveFps.size()));
+            try (SegmentedIndex.View view = index.view();
+                 SegmentedIndex.View expected = fresh.view()) {
+                assertEquals(0, view.nDeleted());
+                assertEquals(liveFps.size(), view.size());
+                for (BinaryFingerprint query : queries)
+                    assertEquals(hits(expected, query), hits(view, query));
+            } finally {
+                fresh.close();
+                index.close();
+            }
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files)
+                    f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    // the top 25 and the hits at or above 0.5, by id
+    private static List<String> hits(final SegmentedIndex.View view, BinaryFingerprint query) {
+        final List<String> hits = new ArrayList<String>();
+        ResultPairEmitter emitter = new ResultPairEmitter() {
+            @Override public void emit(int id, double score) {
+                hits.add(view.id(id) + ":" + score);
+            }
+        };
+        view.top(query, 25, Similarity.Tanimoto, emitter);
+        view.findAll(query, 0.5, Similarity.Tanimoto, emitter);
+        return hits;
+    }
+
+    // index the entries [from, to) with mkidx
+    private static File build(File dir, String name, List<BinaryFingerprint> fps, List<String> ids,
+                              int from, int to) throws IOException {
+        File fpsFile = new File(dir, name + ".fps"), idx = new File(dir, name + ".idx");
+        try (OutputStream out = new FileOutputStream(fpsFile)) {
+            out.write(FpsFmt.header(LENGTH, "test", "SegmentedIndexTest", null).getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = from; i < to; i++) {
+                sb.setLength(0);
+                FpsFmt.writeHex(sb, LENGTH, fps.get(i).words);
+                sb.append('\t').append(ids.get(i)).append('\n');
+                out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        FpsToIdx.build(fpsFile.getPath(), idx.getPath(), 1, 64 << 20, 0);
+        return idx;
+    }
+
+    private static BinaryFingerprint random(Random rnd) {
+        BinaryFingerprint fp  = new BinaryFingerprint(LENGTH);
+        int               pop = 20 + rnd.nextInt(50);
+        while (fp.cardinality() < pop)
+            fp.add(rnd.nextInt(LENGTH));
+        return fp;
+    }
+
+    // a query close to an entry, so there are hits at the threshold
+    private static BinaryFingerprint mutate(Random rnd, BinaryFingerprint fp) {
+        long[] words = fp.words.clone();
+        for (int i = 0; i < 1 + rnd.nextInt(20); i++) {
+            int bit = rnd.nextInt(LENGTH);
+            words[bit >>> 6] ^= 1L << bit;
+        }
+        return BinaryFingerprint.valueOf(words, LENGTH);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The bounds and popcount ranges of the measures never exclude a true hit.
+ *
+ * @author John May
+ */
+public class SimilarityTest {
+
+    private static final Measure[] MEASURES = {Similarity.Tanimoto, Similarity.Cosine, Similarity.Dice,
+                                               Similarity.Manhatten};
+
+    private static final double[] THRESHOLDS = {0.1, 0.35, 0.5, 0.72, 0.9, 1};
+
+    // every score possible for the popcounts is at most the bound
+    @Test public void bound() {
+        int n = 64;
+        for (Measure measure : MEASURES) {
+            for (int q = 1; q <= n; q++) {
+                for (int t = 1; t <= n; t++) {
+                    double bound = measure.bound(q, t, n);
+                    for (int both = Math.max(0, q + t - n); both <= Math.min(q, t); both++) {
+                        double score = measure.compute(q - both, t - both, both, n - (q + t - both));
+                        assertTrue(measure + " q=" + q + " t=" + t + " both=" + both, score <= bound);
+                    }
+                }
+            }
+        }
+    }
+
+    // the range is exactly the popcounts whose bound reaches the threshold
+    @Test public void range() {
+        int n = 166;
+        for (Measure measure : MEASURES) {
+            for (double threshold : THRESHOLDS) {
+                for (int q = 1; q <= n; q++) {
+                    int[] range = measure.range(q, threshold, n);
+                    for (int t = 0; t <= n; t++) {
+                        boolean admitted = t >= range[0] && t <= range[1];
+                        assertEquals(measure + " q=" + q + " t=" + t + " threshold=" + threshold,
+                                     measure.bound(q, t, n) >= threshold, admitted);
+                    }
+                }
+            }
+        }
+    }
+
+    // findAll returns exactly the entries at or above the threshold
+    @Test public void findAll() throws IOException {
+        int                     n   = 256;
+        Random                  rnd = new Random(3);
+        List<BinaryFingerprint> fps = new ArrayList<BinaryFingerprint>();
+        for (int i = 0; i < 5000; i++) {
+            BinaryFingerprint fp  = new BinaryFingerprint(n);
+            int               pop = 1 + rnd.nextInt(i % 2 == 0 ? 40 : n - 1);
+            while (fp.cardinality() < pop)
+                fp.add(rnd.nextInt(n));
+            fps.add(fp);
+        }
+        File f = File.createTempFile("measure", ".idx");
+        f.deleteOnExit();
+        int[]           perm  = FingerprintSort.index(fps, n, f);
+        SimilarityIndex index = SimilarityIndex.load(f);
+        try {
+            for (int q = 0; q < 20; q++) {
+                BinaryFingerprint query = fps.get(rnd.nextInt(fps.size()));
+                for (Measure measure : MEASURES) {
+                    for (double threshold : THRESHOLDS) {
+                        final List<String> actual = new ArrayList<String>();
+                        index.findAll(query, threshold, measure, new ResultPairEmitter() {
+                            @Override public void emit(int id, double score) {
+                                actual.add(id + ":" + score);
+                            }
+                        });
+                        List<String> expected = new ArrayList<String>();
+                        for (int id = 0; id < perm.length; id++) {
+                            double score = query.similarity(fps.get(perm[id]), measure);
+                            if (score >= threshold)
+                                expected.add(id + ":" + score);
+                        }
+                        assertEquals(measure + " at " + threshold, expected, actual);
+                    }
+                }
+            }
+        } finally {
+            index.close();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The serial, parallel and sharded top-k searches find the same hits in the same order. The
+ * fingerprints only use a few bits so there are many duplicates and tied scores, ties are
+ * ordered by entry id.
+ *
+ * @author John May
+ */
+public class TopKTest {
+
+    private static final int LENGTH = 64;
+    private static final int K      = 50;
+
+    @Test public void serialAndParallel() throws IOException {
+        Random                  rnd = new Random(42);
+        List<BinaryFingerprint> fps = fingerprints(rnd, 20000);
+        File                    f   = File.createTempFile("topk", ".idx");
+        f.deleteOnExit();
+        int[]           perm  = FingerprintSort.index(fps, LENGTH, f);
+        SimilarityIndex index = SimilarityIndex.load(f);
+        ForkJoinPool    pool  = new ForkJoinPool(4);
+        try {
+            List<BinaryFingerprint> entries = new ArrayList<BinaryFingerprint>();
+            for (int i = 0; i < perm.length; i++)
+                entries.add(fps.get(perm[i]));
+            for (int q = 0; q < 20; q++) {
+                BinaryFingerprint query  = fps.get(rnd.nextInt(fps.size()));
+                Hits              serial = new Hits(), parallel = new Hits();
+                index.top(query, K, Similarity.Tanimoto, serial);
+                index.top(query, K, Similarity.Tanimoto, parallel, pool);
+                Hits expected = expected(query, entries);
+                expected.assertSame(serial);
+                expected.assertSame(parallel);
+            }
+        } finally {
+            pool.shutdown();
+            index.close();
+        }
+    }
+
+    @Test public void sharded() throws IOException {
+        Random                  rnd    = new Random(7);
+        SimilarityIndex[]       shards = new SimilarityIndex[3];
+        List<BinaryFingerprint> all    = new ArrayList<BinaryFingerprint>();
+        ForkJoinPool            pool   = new ForkJoinPool(4);
+        try {
+            for (int s = 0; s < shards.length; s++) {
+                List<BinaryFingerprint> fps = fingerprints(rnd, 6000 + 1000 * s);
+                File f = File.createTempFile("topk", ".idx");
+                f.deleteOnExit();
+                // entries in index order, the global id is the offset of the shard plus the id
+                for (int i : FingerprintSort.index(fps, LENGTH, f))
+                    all.add(fps.get(i));
+                shards[s] = SimilarityIndex.load(f);
+            }
+            ShardedIndex index = new ShardedIndex(new String[]{"a", "b", "c"}, shards, true);
+            for (int q = 0; q < 20; q++) {
+                BinaryFingerprint query  = all.get(rnd.nextInt(all.size()));
+                Hits              serial = new Hits(), parallel = new Hits();
+                index.top(query, K, Similarity.Tanimoto, serial, null);
+                index.top(query, K, Similarity.Tanimoto, parallel, pool);
+                Hits expected = expected(query, all);
+                expected.assertSame(serial);
+                expected.assertSame(parallel);
+            }
+        } finally {
+            pool.shutdown();
+            for (SimilarityIndex shard : shards) {
+                if (shard != null)
+                    shard.close();
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noHits() throws IOException {
+        File f = File.createTempFile("topk", ".idx");
+        f.deleteOnExit();
+        FingerprintSort.index(fingerprints(new Random(1), 10), LENGTH, f);
+        SimilarityIndex index = SimilarityIndex.load(f);
+        try {
+            index.top(new BinaryFingerprint(LENGTH), 0, Similarity.Tanimoto, new Hits());
+        } finally {
+            index.close();
+        }
+    }
+
+    // few bits from a small range, many entries are the same
+    private static List<BinaryFingerprint> fingerprints(Random rnd, int n) {
+        List<BinaryFingerprint> fps = new ArrayList<BinaryFingerprint>(n);
+        for (int i = 0; i < n; i++) {
+            BinaryFingerprint fp  = new BinaryFingerprint(LENGTH);
+            int               pop = 2 + rnd.nextInt(5);
+            while (fp.cardinality() < pop)
+                fp.add(rnd.nextInt(16));
+            fps.add(fp);
+        }
+        return fps;
+    }
+
+    // score every entry, the best first and then by id
+    private static Hits expected(BinaryFingerprint query, List<BinaryFingerprint> entries) {
+        final double[] scores = new double[entries.size()];
+        Integer[]      ids    = new Integer[entries.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+            scores[i] = query.similarity(entries.get(i), Similarity.Tanimoto);
+        }
+        Arrays.sort(ids, new Comparator<Integer>() {
+            @Override public int compare(Integer a, Integer b) {
+                int cmp = Double.compare(scores[b], scores[a]);
+                return cmp != 0 ? cmp : a.compareTo(b);
+            }
+        });
+        Hits hits = new Hits();
+        for (int i = 0; i < K; i++)
+            hits.emit(ids[i], scores[ids[i]]);
+        return hits;
+    }
+
+    private static final class Hits implements ResultPairEmitter {
+
+        private final List<Integer> ids    = new ArrayList<Integer>();
+        private final List<Double>  scores = new ArrayList<Double>();
+
+        @Override public void emit(int id, double score) {
+            ids.add(id);
+            scores.add(score);
+        }
+
+        void assertSame(Hits that) {
+            assertEquals(scores, that.scores);
+            assertEquals(ids, that.ids);
+        }
+    }
+}
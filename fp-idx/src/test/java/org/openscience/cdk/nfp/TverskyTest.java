@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2014 European Bioinformatics Institute (EMBL-EBI)
+ *                    John May <jwmay@users.sf.net>
+ *   
+ * Contact: cdk-devel@lists.sourceforge.net
+ *   
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version. All we ask is that proper credit is given
+ * for our work, which includes - but is not limited to - adding the above 
+ * copyright notice to the beginning of your source code files, and to any
+ * copyright notice that you may distribute with programs based on this work.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 U
+ */
+
+
+package org.openscience.cdk.nfp;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The substructure screen finds exactly the entries that contain the query.
+ *
+ * @author John May
+ */
+public class TverskyTest {
+
+    private static final int LENGTH = 256;
+
+    @Test public void bound() {
+        Measure[] measures = {Tversky.SUBSTRUCTURE, new Tversky(0.7, 0.3), new Tversky(0.2, 1.5)};
+        for (Measure measure : measures) {
+            for (int q = 1; q <= 64; q++) {
+                for (int t = 1; t <= 64; t++) {
+                    double bound = measure.bound(q, t, 64);
+                    for (int both = Math.max(0, q + t - 64); both <= Math.min(q, t); both++)
+                        assertTrue(measure + " q=" + q + " t=" + t, measure.compute(q - both, t - both, both, 64 - (q + t - both)) <= bound);
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeWeight() {
+        new Tversky(-1, 0.5);
+    }
+
+    @Test public void screen() throws IOException {
+        Random                  rnd = new Random(17);
+        List<BinaryFingerprint> fps = new ArrayList<BinaryFingerprint>();
+        for (int i = 0; i < 5000; i++)
+            fps.add(random(rnd, 5 + rnd.nextInt(120)));
+        File f = File.createTempFile("screen", ".idx");
+        f.deleteOnExit();
+        int[]           perm  = FingerprintSort.index(fps, LENGTH, f);
+        SimilarityIndex index = SimilarityIndex.load(f);
+        try {
+            // small queries have many hits, the empty query is contained in every entry
+            List<BinaryFingerprint> queries = new ArrayList<BinaryFingerprint>();
+            queries.add(new BinaryFingerprint(LENGTH));
+            for (int q = 0; q < 30; q++)
+                queries.add(random(rnd, 1 + rnd.nextInt(8)));
+            for (int q = 0; q < 10; q++)
+                queries.add(fps.get(rnd.nextInt(fps.size())));
+            for (BinaryFingerprint query : queries) {
+                List<Integer> expected = new ArrayList<Integer>();
+                for (int id = 0; id < perm.length; id++) {
+                    if (fps.get(perm[id]).contains(query))
+                        expected.add(id);
+                }
+                assertEquals(expected, screen(index, query));
+            }
+        } finally {
+            index.close();
+        }
+    }
+
+    // the deleted entries are not screened, also for an empty query
+    @Test public void screenDeleted() throws IOException {
+        Random                  rnd = new Random(19);
+        List<BinaryFingerprint> fps = new ArrayList<BinaryFingerprint>();
+        for (int i = 0; i < 1000; i++)
+            fps.add(random(rnd, 5 + rnd.nextInt(60)));
+        File f = File.createTempFile("screen", ".idx");
+        f.deleteOnExit();
+        Tombstones.of(f).deleteOnExit();
+        int[]  perm    = FingerprintSort.index(fps, LENGTH, f);
+        long[] deleted = new long[(perm.length + 63) / 64];
+        for (int id = 0; id < perm.length; id += 3)
+            deleted[id >>> 6] |= 1L << id;
+        SimilarityIndex index = SimilarityIndex.load(f);
+        Tombstones.write(Tombstones.of(f), deleted, index.counts());
+        index.close();
+
+        index = SimilarityIndex.load(f);
+        try {
+            BinaryFingerprint[] queries = {new BinaryFingerprint(LENGTH), random(rnd, 2)};
+            for (BinaryFingerprint query : queries) {
+                List<Integer> expected = new ArrayList<Integer>();
+                for (int id = 0; id < perm.length; id++) {
+                    if (id % 3 != 0 && fps.get(perm[id]).contains(query))
+                        expected.add(id);
+                }
+                assertEquals(expected, screen(index, query));
+            }
+        } finally {
+            index.close();
+        }
+    }
+
+    private static List<Integer> screen(SimilarityIndex index, BinaryFingerprint query) {
+        final List<Integer> hits = new ArrayList<Integer>();
+        index.screen(query, new ResultPairEmitter() {
+            @Override public void emit(int id, double score) {
+                assertEquals(1, score, 0);
+                hits.add(id);
+            }
+        });
+        return hits;
+    }
+
+    private static BinaryFingerprint random(Random rnd, int pop) {
+        BinaryFingerprint fp = new BinaryFingerprint(LENGTH);
+        while (fp.cardinality() < pop)
+            fp.add(rnd.nextInt(LENGTH));
+        return fp;
+    }
+}